@@ -0,0 +1,37 @@
+package simpledb;
+
+import java.util.HashMap;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares the heap taken to count tuples per key with a HashMap of
+ * IntFields and with an IntHashTable and an int array.  The numbers depend
+ * on the garbage collector, so they are printed, not checked; IntHashTableTest
+ * checks the size of the table's own arrays.
+ */
+public class IntHashTableBenchmark {
+
+    public static void main(String[] args) {
+        final int keys = 200000;
+        long before = SystemTestUtil.getMemoryFootprint();
+        HashMap<Field, Integer> map = new HashMap<Field, Integer>();
+        for (int i = 0; i < keys; i++) {
+            map.put(new IntField(i * 7), i);
+        }
+        long boxed = SystemTestUtil.getMemoryFootprint() - before;
+        map = null;
+
+        before = SystemTestUtil.getMemoryFootprint();
+        IntHashTable table = new IntHashTable(16);
+        int[] counts = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            counts[table.add(i * 7)] = i;
+        }
+        long flat = SystemTestUtil.getMemoryFootprint() - before;
+
+        System.out.println(String.format("IntHashTableBenchmark: %d keys: HashMap<Field, Integer> %d KB, "
+                + "IntHashTable %d KB (%d KB of arrays, %d counts)", keys, boxed / 1024, flat / 1024,
+                table.sizeBytes() / 1024, counts.length));
+    }
+}
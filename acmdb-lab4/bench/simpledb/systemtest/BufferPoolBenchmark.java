@@ -0,0 +1,66 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import simpledb.*;
+
+/**
+ * Times scans of a cached table from 1 up to 8 threads.  The checks of what
+ * the pool does are in BufferPoolConcurrencyTest.
+ */
+public class BufferPoolBenchmark {
+
+    static void cachedScanScaling() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        final DbFile table = BufferPoolConcurrencyTest.createTable(tuples);
+        final int expected = tuples.size();
+        final int scans = BufferPoolConcurrencyTest.SCANS_PER_THREAD;
+        Database.resetBufferPool(BufferPoolConcurrencyTest.PAGES * 2);
+        BufferPoolConcurrencyTest.scan(table);
+
+        int maxThreads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int s = 0; s < scans; s++) {
+                                BufferPoolConcurrencyTest.scan(table);
+                            }
+                        } catch (Throwable t) {
+                            error.set(t);
+                        }
+                    }
+                };
+            }
+            long start = System.nanoTime();
+            for (Thread t : workers) {
+                t.start();
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (error.get() != null) {
+                throw new RuntimeException(error.get());
+            }
+
+            double tuplesPerSec = (double) expected * scans * threads / seconds;
+            if (threads == 1) {
+                base = tuplesPerSec;
+            }
+            System.out.println(String.format("BufferPoolBenchmark: %d thread(s): %.0f tuples/s (%.2fx)",
+                    threads, tuplesPerSec, tuplesPerSec / base));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        cachedScanScaling();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+
+import simpledb.*;
+
+/**
+ * Times the join operators: a non-equi join tuple at a time, in blocks and
+ * by sort-merge, a hash join in memory and spilling, and a hash join with
+ * and without a key filter pushed into its probe scan.  The checks of what
+ * they do are in JoinTest and HashEquiJoinTest.
+ */
+public class JoinBenchmark {
+    private static final int COLUMNS = 2;
+
+    private static HeapFile table(int rows, int maxValue) throws Exception {
+        return SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null,
+                new ArrayList<ArrayList<Integer>>());
+    }
+
+    static void blockNestedLoop() throws Exception {
+        final int rows = 2000;
+        HeapFile table1 = table(rows, 65536);
+        HeapFile table2 = table(rows, 65536);
+        Database.resetBufferPool(2);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        TransactionId tid = new TransactionId();
+
+        int tupleBytes = table1.getTupleDesc().getSize();
+        long start = System.nanoTime();
+        TestUtil.countTuples(new Join(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), tupleBytes));
+        long tupleAtATime = System.nanoTime() - start;
+        start = System.nanoTime();
+        TestUtil.countTuples(new Join(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), "")));
+        long blocked = System.nanoTime() - start;
+        start = System.nanoTime();
+        TestUtil.countTuples(new SortMergeJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), "")));
+        long merged = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.println(String.format("JoinBenchmark: %d x %d rows, LESS_THAN: tuple at a time %d ms, "
+                + "in blocks %d ms, sort-merge %d ms",
+                rows, rows, tupleAtATime / 1000000, blocked / 1000000, merged / 1000000));
+    }
+
+    static void hashSpilling() throws Exception {
+        final int rows = 50000;
+        HeapFile table1 = table(rows, rows);
+        HeapFile table2 = table(rows, rows);
+        int budget = rows * table1.getTupleDesc().getSize() / 8;
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        long start = System.nanoTime();
+        HashEquiJoin inMemory = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        TestUtil.countTuples(inMemory);
+        long inMemoryTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        HashEquiJoin spilling = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), budget);
+        TestUtil.countTuples(spilling);
+        long spillingTime = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.println(String.format("JoinBenchmark: %d x %d rows: in memory %d ms, %d KB; "
+                + "%d KB budget %d ms, %d KB, %d partitions and %d tuples spilled",
+                rows, rows, inMemoryTime / 1000000, inMemory.getPeakMemoryBytes() / 1024,
+                budget / 1024, spillingTime / 1000000, spilling.getPeakMemoryBytes() / 1024,
+                spilling.getSpilledPartitions(), spilling.getSpilledTuples()));
+    }
+
+    static void keyFilter() throws Exception {
+        final int facts = 200000;
+        HeapFile dimension = table(100, 100);
+        HeapFile fact = table(facts, 10000);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < COLUMNS; i++) {
+            fields.add(i);
+        }
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+
+        // warm up the buffer pool, so both joins read cached pages
+        TestUtil.countTuples(new SeqScan(tid, fact.getId(), ""));
+
+        long start = System.nanoTime();
+        int matches = TestUtil.countTuples(new HashEquiJoin(p, new SeqScan(tid, dimension.getId(), ""),
+                new Project(fields, types, new SeqScan(tid, fact.getId(), ""))));
+        long unfilteredTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        HashEquiJoin filtered = new HashEquiJoin(p, new SeqScan(tid, dimension.getId(), ""),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                        new SeqScan(tid, fact.getId(), "")));
+        TestUtil.countTuples(filtered);
+        long filteredTime = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.println(String.format("JoinBenchmark: 100 x %d rows, %d matches: "
+                + "unfiltered %d ms, key filter %d ms, %d tuples skipped",
+                facts, matches, unfilteredTime / 1000000, filteredTime / 1000000,
+                filtered.getProbeTuplesSkipped()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        blockNestedLoop();
+        Database.reset();
+        hashSpilling();
+        Database.reset();
+        keyFilter();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,62 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+
+import simpledb.*;
+
+/**
+ * Times commits from 1, 4 and 16 clients that share forces of the log, and
+ * read-modify-write transactions under two-phase locking and optimistic
+ * concurrency control as contention goes down.  The checks of what they do
+ * are in GroupCommitTest and OptimisticConcurrencyTest.
+ */
+public class TransactionBenchmark {
+    private static final long RUN_MILLIS = 300;
+
+    static void groupCommit() throws Exception {
+        int maxClients = GroupCommitTest.MAX_CLIENTS;
+        HeapFile[] tables = new HeapFile[maxClients];
+        for (int i = 0; i < maxClients; i++) {
+            tables[i] = SystemTestUtil.createRandomHeapFile(2, 0, null, new ArrayList<ArrayList<Integer>>());
+        }
+        for (int clients = 1; clients <= maxClients; clients *= 4) {
+            long forcesBefore = Database.getLogFile().getGroupForces();
+            int[] commits = GroupCommitTest.runClients(tables, clients, RUN_MILLIS, 0);
+            long forces = Database.getLogFile().getGroupForces() - forcesBefore;
+            int total = 0;
+            for (int c : commits) {
+                total += c;
+            }
+            System.out.println(String.format("TransactionBenchmark: %d client(s): %.0f commits/s, "
+                    + "%.1f commits per force",
+                    clients, total * 1000.0 / RUN_MILLIS, total / (double) Math.max(forces, 1)));
+        }
+    }
+
+    static void lockingAgainstValidation() throws Exception {
+        int maxHotPages = OptimisticConcurrencyTest.MAX_HOT_PAGES;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2,
+                OptimisticConcurrencyTest.TUPLES_PER_PAGE * maxHotPages,
+                null, new ArrayList<ArrayList<Integer>>());
+        BufferPool pool = Database.resetBufferPool(maxHotPages * 2);
+        for (int hotPages = 1; hotPages <= maxHotPages; hotPages *= 4) {
+            StringBuilder line = new StringBuilder("TransactionBenchmark: " + hotPages + " hot page(s):");
+            for (boolean optimistic : new boolean[] {false, true}) {
+                long waited = pool.getLockWaitMillis();
+                int[] result = OptimisticConcurrencyTest.runMix(f, hotPages, optimistic, RUN_MILLIS, 0);
+                line.append(String.format(" %s %.0f commits/s (%d aborts, %d ms waiting for locks)",
+                        optimistic ? "OCC" : "2PL", result[0] * 1000.0 / RUN_MILLIS, result[1],
+                        pool.getLockWaitMillis() - waited));
+            }
+            System.out.println(line);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        groupCommit();
+        Database.reset();
+        lockingAgainstValidation();
+        System.exit(0);
+    }
+}
@@ -2,7 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 import simpledb.Predicate.Op;
@@ -23,9 +25,18 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final PagedFile pages;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// short-term latches on the pages, separate from transaction locks
+	private final PageLatches latches = new PageLatches();
+	// splits, merges and redistributions run one at a time under this lock,
+	// and hold these latches while they do, keeping the pages they change as
+	// they were before, to put back if the change cannot finish
+	private final ReentrantLock structureLock = new ReentrantLock();
+	private PageLatches.Held structureLatches;
+	private HashMap<BTreePageId, Page> structureBefore;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -37,6 +48,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.pages = new PagedFile(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -71,6 +83,19 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	/**
+	 * Turns memory-mapped reads on or off.  In this mode leaf and internal
+	 * pages are built straight from a read-only mapping of the file instead
+	 * of being read into a byte array first.  Writes are unaffected.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		pages.setMemoryMapped(memoryMapped);
+	}
+
+	public boolean isMemoryMapped() {
+		return pages.isMemoryMapped();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -80,14 +105,20 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				ByteBuffer region = pages.mapped(0, pageBuf.length);
+				int retval;
+				if (region != null) {
+					region.get(pageBuf);
+					retval = pageBuf.length;
+				}
+				else {
+					retval = pages.read(0, pageBuf);
+				}
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -99,14 +130,26 @@ public class BTreeFile implements DbFile {
 				return p;
 			}
 			else {
+				ByteBuffer region = pages.mapped(pageOffset(id.pageNumber()), BufferPool.getPageSize());
+				if (region != null) {
+					Debug.log(1, "BTreeFile.readPage: mapped page %d", id.pageNumber());
+					if(id.pgcateg() == BTreePageId.INTERNAL) {
+						return new BTreeInternalPage(id, region, keyField);
+					}
+					else if(id.pgcateg() == BTreePageId.LEAF) {
+						return new BTreeLeafPage(id, region, keyField);
+					}
+				}
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
+				int retval;
+				if (region != null) {
+					region.get(pageBuf);
+					retval = pageBuf.length;
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				else {
+					retval = pages.read(pageOffset(id.pageNumber()), pageBuf);
+				}
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -129,14 +172,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -150,24 +185,32 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			pages.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			pages.write(pageOffset(id.pageNumber()), data);
 		}
 	}
+
+	/**
+	 * Returns the file offset of the given (non root pointer) page
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
-		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		// we only ever write full pages, and always through this BTreeFile,
+		// so the size cached by pages is exact
+		try {
+			return (int) ((pages.size() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -177,65 +220,270 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/** @return the latches on the pages of this tree, for its scans */
+	PageLatches latches() {
+		return latches;
+	}
+
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
-	 * 
-	 * If f is null, it finds the left-most leaf page -- used for the iterator
+	 * @return the child of page to descend to when looking for the left-most leaf
+	 * possibly containing the key field f, or its left-most child if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry entry = it.next();
+		if(f == null) {
+			return entry.getLeftChild();
+		}
+		while(true) {
+			if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return entry.getLeftChild();
+			}
+			if(!it.hasNext()) {
+				return entry.getRightChild();
+			}
+			entry = it.next();
+		}
+	}
+
+	/**
+	 * Finds the left-most leaf page possibly containing the key field f, or the left-most
+	 * leaf if f is null, by latch crabbing: the root pointer and internal pages are only
+	 * latched shared, each until the next page down is latched, and are not locked.
+	 * The leaf is latched exclusively if perm is READ_WRITE, shared otherwise, and locked
+	 * for tid with permission perm.  If another transaction holds a conflicting lock, all
+	 * latches are released, the lock is waited for and the search starts over.
 	 * 
 	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
+	 * @param held - the latches of this operation; holds only the leaf's on return
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
-	 * 
+	 * @return the leaf page, or null if the tree has no root page yet
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f) 
-					throws DbException, TransactionAbortedException {
-		// some code goes here
-		//System.out.println("how get here");
-		switch (pid.pgcateg()) {
-			case BTreePageId.LEAF:
-				return (BTreeLeafPage)getPage(tid, dirtypages, pid, perm);
-			case BTreePageId.INTERNAL:
-				BTreeInternalPage curPage = (BTreeInternalPage)getPage(tid, dirtypages, pid, perm);
-				Iterator<BTreeEntry> it = curPage.iterator();
-				if (f == null) {
-					return findLeafPage(tid, dirtypages, it.next().getLeftChild(), perm, f);
-				}
-				BTreeEntry curEntry = null;
-				while (it.hasNext()) {
-					curEntry = it.next();
-					if (curEntry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-						return findLeafPage(tid, dirtypages, curEntry.getLeftChild(), perm, f);
-					}
-				}
-				return findLeafPage(tid, dirtypages, curEntry.getRightChild(), perm, f);
-			default:
-				throw new DbException("Invalid page type");
+	private BTreeLeafPage latchLeafPage(TransactionId tid, PageLatches.Held held, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(true) {
+			held.latch(rootPtrId, false);
+			BTreePageId pid = ((BTreeRootPtrPage) pool.getPage(null, rootPtrId, Permissions.READ_ONLY)).getRootId();
+			if(pid == null) {
+				return null;
+			}
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				held.crab(pid, false);
+				pid = childFor((BTreeInternalPage) pool.getPage(null, pid, Permissions.READ_ONLY), f);
+			}
+			held.crab(pid, perm == Permissions.READ_WRITE);
+			BTreeLeafPage leaf = (BTreeLeafPage) pool.tryGetPage(tid, pid, perm);
+			if(leaf != null) {
+				return leaf;
+			}
+			held.releaseAll();
+			pool.getPage(tid, pid, perm);
 		}
 	}
-	
+
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page 
+	 * possibly containing the key field f, or the left-most leaf page if f is null.  Internal
+	 * pages are only latched on the way down, so only the leaf is locked, with permission perm.
+	 * Used by the BTreeFile iterators.
+	 * @see #latchLeafPage(TransactionId, PageLatches.Held, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the tree is empty
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
+			throws DbException, TransactionAbortedException {
+		PageLatches.Held held = latches.newHeld();
+		try {
+			return latchLeafPage(tid, held, perm, f);
+		}
+		finally {
+			held.releaseAll();
+		}
+	}
+
+	/**
+	 * @return the pages from the root pointer down to the left-most leaf possibly containing
+	 * the key field f, or just the root pointer if the tree has no root page yet.  Only
+	 * valid while the structure lock is held.
+	 */
+	private ArrayList<BTreePageId> pathByKey(Field f) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		path.add(pid);
+		pid = ((BTreeRootPtrPage) pool.getPage(null, pid, Permissions.READ_ONLY)).getRootId();
+		while(pid != null) {
+			path.add(pid);
+			if(pid.pgcateg() != BTreePageId.INTERNAL) {
+				break;
+			}
+			pid = childFor((BTreeInternalPage) pool.getPage(null, pid, Permissions.READ_ONLY), f);
+		}
+		return path;
+	}
+
+	/**
+	 * @return the pages from the root pointer down to the given leaf, following parent
+	 * pointers.  Only valid while the structure lock is held.
+	 */
+	private ArrayList<BTreePageId> pathToLeaf(BTreePageId leafId) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+		BTreePageId pid = leafId;
+		while(pid.pgcateg() != BTreePageId.ROOT_PTR) {
+			path.add(0, pid);
+			pid = ((BTreePage) pool.getPage(null, pid, Permissions.READ_ONLY)).getParentId();
+		}
+		path.add(0, pid);
+		return path;
+	}
+
+	/**
+	 * A page is safe for an insert or a delete if adding or removing one tuple or entry
+	 * cannot make it split or fall below minimum occupancy, so the change stops there.
+	 * The root is never below minimum occupancy, but an internal root losing its last
+	 * entry is replaced by its child.
+	 */
+	private static boolean isSafe(BTreePage page, boolean insert) {
+		if(insert) {
+			return page.getNumEmptySlots() > 0;
+		}
+		boolean leaf = page.getId().pgcateg() == BTreePageId.LEAF;
+		if(page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			return leaf || ((BTreeInternalPage) page).getNumEntries() > 1;
+		}
+		int max = leaf ? ((BTreeLeafPage) page).getMaxTuples() : ((BTreeInternalPage) page).getMaxEntries();
+		int maxEmptySlots = max - max/2; // ceiling
+		return page.getNumEmptySlots() < maxEmptySlots;
+	}
+
+	/**
+	 * Latches a path from the root pointer to a leaf exclusively for a structure change,
+	 * crabbing: once a page on the path is safe, the change cannot spread above it and the
+	 * latches on its ancestors are released.  Then locks the pages still latched, the
+	 * leaf's siblings whose pointers the change may update, and for an insert the children
+	 * of internal pages that will split, for tid without waiting.  Locks the change would
+	 * otherwise find busy halfway through, aborting tid, are waited for up front instead.
 	 * 
+	 * @param tid - the transaction id
+	 * @param path - the path, as from pathByKey or pathToLeaf
+	 * @param insert - true for an insert, false for a delete
+	 * @return null if tid now holds all the locks, otherwise a page locked by another transaction
+	 */
+	private BTreePageId latchPath(TransactionId tid, ArrayList<BTreePageId> path, boolean insert)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		ArrayList<BTreePageId> toLock = new ArrayList<BTreePageId>();
+		for(BTreePageId pid : path) {
+			structureLatches.latch(pid, true);
+			if(pid.pgcateg() != BTreePageId.ROOT_PTR
+					&& isSafe((BTreePage) pool.getPage(null, pid, Permissions.READ_ONLY), insert)) {
+				structureLatches.releaseAllBut(pid);
+				toLock.clear();
+			}
+			toLock.add(pid);
+		}
+		if(insert) {
+			// every page latched below the safe one splits; the top one gets the new entry
+			for(int i = toLock.size() - 1; i > 0; i--) {
+				BTreePageId pid = toLock.get(i);
+				if(pid.pgcateg() == BTreePageId.INTERNAL) {
+					BTreeInternalPage page = (BTreeInternalPage) pool.getPage(null, pid, Permissions.READ_ONLY);
+					Iterator<BTreeEntry> it = page.iterator();
+					BTreeEntry e = it.next();
+					toLock.add(e.getLeftChild());
+					toLock.add(e.getRightChild());
+					while(it.hasNext()) {
+						toLock.add(it.next().getRightChild());
+					}
+				}
+			}
+		}
+		BTreePageId leafId = path.get(path.size() - 1);
+		if(leafId.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leaf = (BTreeLeafPage) pool.getPage(null, leafId, Permissions.READ_ONLY);
+			if(leaf.getLeftSiblingId() != null) {
+				toLock.add(leaf.getLeftSiblingId());
+			}
+			if(!insert && leaf.getRightSiblingId() != null) {
+				toLock.add(leaf.getRightSiblingId());
+			}
+		}
+		for(BTreePageId pid : toLock) {
+			if(pool.tryGetPage(tid, pid, Permissions.READ_WRITE) == null) {
+				return pid;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts a structure change: the caller must hold structureLock.
+	 */
+	private void beginStructureChange() {
+		structureLatches = latches.newHeld();
+		structureBefore = new HashMap<BTreePageId, Page>();
+	}
+
+	/**
+	 * Marks the pages a finished structure change made dirty by tid, and caches them,
+	 * before its latches are released.
+	 * @return the pages
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
-					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+	private ArrayList<Page> finishStructureChange(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>(dirtypages.values());
+		for(Page p : dirtyPagesArr) {
+			Database.getBufferPool().cacheDirtyPage(tid, p);
+		}
+		structureBefore = null;
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Ends a structure change, releasing its latches.  If it did not finish, the pages it
+	 * changed are first put back as they were, so no search ever sees a half-done change.
+	 * They stay dirtied by tid, which is about to abort.
+	 */
+	private void endStructureChange(TransactionId tid) throws DbException, TransactionAbortedException {
+		try {
+			if(structureBefore != null) {
+				for(Page copy : structureBefore.values()) {
+					Database.getBufferPool().cacheDirtyPage(tid, copy);
+				}
+			}
+		}
+		finally {
+			structureLatches.releaseAll();
+			structureLatches = null;
+			structureBefore = null;
+			structureLock.unlock();
+		}
+	}
+
+	/**
+	 * Puts back the version of a page from before tid changed it, for an abort, while no
+	 * operation has it latched and no structure change is running: a search never sees a
+	 * half-restored page, and a structure change never works from a path that an abort has
+	 * since undone.
+	 */
+	void restorePage(TransactionId tid, Page before) throws DbException, TransactionAbortedException {
+		structureLock.lock();
+		PageLatches.Held held = latches.newHeld();
+		held.latch(before.getId(), true);
+		try {
+			Database.getBufferPool().cacheDirtyPage(tid, before);
+		}
+		finally {
+			held.releaseAll();
+			structureLock.unlock();
+		}
 	}
 
 	/**
@@ -487,6 +735,9 @@ public class BTreeFile implements DbFile {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
+		else if(structureLock.isHeldByCurrentThread() && structureLatches != null) {
+			return getLatchedPage(tid, dirtypages, pid, perm);
+		}
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
@@ -496,6 +747,63 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * getPage for a structure change.  Tree pages are latched exclusively before they are
+	 * used, which keeps pages only read stable without a lock.  Pages to change are locked
+	 * without waiting, since latches are held: if another transaction holds a lock, tid
+	 * aborts.  The root pointer is only latched on the path, as searches latch it first.
+	 */
+	private Page getLatchedPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.LEAF || pid.pgcateg() == BTreePageId.INTERNAL) {
+			structureLatches.latch(pid, true);
+		}
+		if(perm == Permissions.READ_ONLY) {
+			return Database.getBufferPool().getPage(null, pid, perm);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if(p == null) {
+			throw new TransactionAbortedException();
+		}
+		if(!structureBefore.containsKey(pid)) {
+			try {
+				structureBefore.put(pid, copyOf(p));
+			}
+			catch(IOException e) {
+				throw new DbException("unable to copy page " + pid + " of " + f.getName());
+			}
+		}
+		dirtypages.put(pid, p);
+		return p;
+	}
+
+	/**
+	 * Copies a page as it is now, keeping its before image, to put back if a structure
+	 * change does not finish.
+	 */
+	private Page copyOf(Page p) throws IOException {
+		BTreePageId pid = (BTreePageId) p.getId();
+		byte[] data = p.getPageData();
+		switch(pid.pgcateg()) {
+			case BTreePageId.ROOT_PTR:
+				BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(pid, data);
+				rootPtr.setBeforeImage(p);
+				return rootPtr;
+			case BTreePageId.INTERNAL:
+				BTreeInternalPage internal = new BTreeInternalPage(pid, data, keyField);
+				internal.setBeforeImage(p);
+				return internal;
+			case BTreePageId.LEAF:
+				BTreeLeafPage leaf = new BTreeLeafPage(pid, data, keyField);
+				leaf.setBeforeImage(p);
+				return leaf;
+			default:
+				BTreeHeaderPage header = new BTreeHeaderPage(pid, data);
+				header.setBeforeImage(p);
+				return header;
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -508,43 +816,60 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Field key = t.getField(keyField);
+		createRootIfEmpty();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		// most inserts only change their leaf page: find it by latch crabbing
+		// and insert right away if it has room
+		PageLatches.Held held = latches.newHeld();
+		try {
+			BTreeLeafPage leafPage = latchLeafPage(tid, held, Permissions.READ_WRITE, key);
+			if(leafPage != null && leafPage.getNumEmptySlots() > 0) {
+				leafPage.insertTuple(t);
+				leafPage.markDirty(true, tid);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.add(leafPage);
+				return dirtyPagesArr;
+			}
 		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+		finally {
+			held.releaseAll();
 		}
 
-		// insert the tuple into the leaf page
-		//System.out.println(leafPage.getNumEmptySlots());
+		// otherwise the leaf must be split, or the root created
+		while(true) {
+			BTreePageId busy;
+			structureLock.lock();
+			beginStructureChange();
+			try {
+				ArrayList<BTreePageId> path = pathByKey(key);
+				busy = latchPath(tid, path, true);
+				if(busy == null) {
+					HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+					BTreePageId leafId = path.size() > 1 ? path.get(path.size() - 1) : null;
+					if(leafId == null) { // the root has just been created, so set the root pointer to point to it		
+						leafId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+						BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+						rootPtr.setRootId(leafId);
+					}
 
-		leafPage.insertTuple(t);
+					// split the leaf page if there are no more slots available
+					BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+					if(leafPage.getNumEmptySlots() == 0) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);	
+					}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		/*for (int i = 0; i < dirtyPagesArr.size(); i++) {
-			//System.out.println(dirtyPagesArr.get(i).getId());
-			if (dirtyPagesArr.get(i).getId().pageNumber() == 2) {
-				System.out.println(((BTreePage)dirtyPagesArr.get(i)).getNumEmptySlots());
+					// insert the tuple into the leaf page
+					leafPage.insertTuple(t);
+					return finishStructureChange(tid, dirtypages);
+				}
+			}
+			finally {
+				endStructureChange(tid);
 			}
+			// wait for the busy page without holding latches, then start over
+			Database.getBufferPool().getPage(tid, busy, Permissions.READ_WRITE);
 		}
-
- 	 	System.out.println(leafPage.getNumEmptySlots());*/
-		//System.out.println(leafPage.getNumEmptySlots() + " " + ((BTreePage)(dirtyPagesArr.get(2))).getNumEmptySlots() + " " + leafPage.getId().pageNumber() + " " +(dirtyPagesArr.get(2)).getId().pageNumber());
-
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -1036,24 +1361,60 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		//System.out.println(pageId + " ---- " + page.getNumEmptySlots() + " " + maxEmptySlots);
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		// most deletes leave their leaf page at least half full and only change it
+		PageLatches.Held held = latches.newHeld();
+		try {
+			BTreeLeafPage page = null;
+			while(page == null) {
+				held.latch(pageId, true);
+				page = (BTreeLeafPage) Database.getBufferPool().tryGetPage(tid, pageId, Permissions.READ_WRITE);
+				if(page == null) {
+					held.releaseAll();
+					Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+				}
+			}
+			if(isSafe(page, false)) {
+				page.deleteTuple(t);
+				page.markDirty(true, tid);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.add(page);
+				return dirtyPagesArr;
+			}
+		}
+		finally {
+			held.releaseAll();
 		}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+		// otherwise the leaf will need tuples from its siblings or a merge
+		while(true) {
+			BTreePageId busy;
+			structureLock.lock();
+			beginStructureChange();
+			try {
+				busy = latchPath(tid, pathToLeaf(pageId), false);
+				if(busy == null) {
+					HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+					BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+					page.deleteTuple(t);
+
+					// if the page is below minimum occupancy, get some tuples from its siblings
+					// or merge with one of the siblings
+					int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+					if(page.getNumEmptySlots() > maxEmptySlots) { 
+						handleMinOccupancyPage(tid, dirtypages, page);
+					}
+					return finishStructureChange(tid, dirtypages);
+				}
+			}
+			finally {
+				endStructureChange(tid);
+			}
+			// wait for the busy page without holding latches, then start over
+			Database.getBufferPool().getPage(tid, busy, Permissions.READ_WRITE);
+		}
 	}
 
 	/**
@@ -1068,23 +1429,22 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createRootIfEmpty() throws IOException {
+		if(pages.size() == 0) {
+			pages.append(BTreeRootPtrPage.createEmptyPageData());
+			pages.append(BTreeLeafPage.createEmptyPageData());
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1133,11 +1493,7 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				pages.append(BTreeInternalPage.createEmptyPageData());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1168,10 +1524,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		pages.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1301,6 +1654,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1313,17 +1667,19 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
 		this.f = f;
 		this.tid = tid;
+		this.readAhead = new ReadAhead(f.latches());
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		readAhead.reset();
+		if(curp != null) {
+			readAhead.onLeafPage(curp);
+			it = curp.iterator();
+		}
 	}
 
 	/**
@@ -1345,6 +1701,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.onLeafPage(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1382,6 +1739,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1397,6 +1755,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.readAhead = new ReadAhead(f.latches());
+		this.readAhead.setBound(ipred, f.keyField());
 	}
 
 	/**
@@ -1404,17 +1764,18 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		}
+		readAhead.reset();
+		if(curp != null) {
+			readAhead.onLeafPage(curp);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1454,6 +1815,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.onLeafPage(curp);
 				it = curp.iterator();
 			}
 		}
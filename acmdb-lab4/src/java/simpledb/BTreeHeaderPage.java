@@ -13,6 +13,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -24,7 +25,7 @@ public class BTreeHeaderPage implements Page {
 	private int prevPage; // previous header page or 0
 
 	byte[] oldData;
-	private final Byte oldDataLock=new Byte((byte)0);
+	private final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -113,6 +114,18 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	/**
+	 * Gives this page the before image of another version of it, e.g. of the one it
+	 * replaces in the buffer pool.
+	 */
+	void setBeforeImage(Page other) {
+		byte[] before = other.getBeforeImage().getPageData().clone();
+		synchronized(oldDataLock)
+		{
+			oldData = before;
+		}
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -264,6 +277,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
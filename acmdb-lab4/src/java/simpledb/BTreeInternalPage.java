@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.Predicate.Op;
 
@@ -70,9 +71,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeInternalPage from a page of data in a buffer, e.g. a region
+	 * of a memory-mapped file, without copying it to a byte array first.
+	 */
+	public BTreeInternalPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
 		// Read the parent pointer
 		try {
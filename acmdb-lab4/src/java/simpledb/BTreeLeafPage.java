@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -13,7 +14,11 @@ import java.io.*;
  */
 public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
+	// tuples that have been asked for or inserted; null for slots not decoded yet
 	private final Tuple tuples[];
+	// the page as read from disk; slots with no entry in tuples are decoded
+	// from here, so it is never modified
+	private final byte[] data;
 	private final int numSlots;
 	
 	private int leftSibling; // leaf node or 0
@@ -62,9 +67,30 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage from a page of data in a buffer, e.g. a region of
+	 * a memory-mapped file.  Only the pointers and header are parsed here;
+	 * tuples, and the fields within them, are decoded when first asked for.
+	 * The page keeps its own copy of the bytes unless data wraps a whole
+	 * page-sized array, which the page then takes over.
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		int pageSize = BufferPool.getPageSize();
+		if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+				&& data.array().length == pageSize) {
+			this.data = data.array();
+		} else {
+			if (data.remaining() < pageSize)
+				throw new IOException("short page: " + data.remaining() + " bytes");
+			this.data = new byte[pageSize];
+			data.get(this.data);
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(this.data));
 
 		// Read the parent and sibling pointers
 		try {
@@ -94,16 +120,13 @@ public class BTreeLeafPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
 		dis.close();
 
-		setBeforeImage();
+		// the page is exactly what was read, and data is never modified
+		synchronized(oldDataLock)
+		{
+			oldData = this.data;
+		}
 	}
 
 	/** 
@@ -154,36 +177,24 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/**
-	 * Read tuples from the source file.
+	 * @return the offset of the given slot in the page data
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
-			return null;
-		}
+	private int slotOffset(int slotId) {
+		return 3 * INDEX_SIZE + header.length + slotId * td.getSize();
+	}
 
-		// read fields in the tuple
-		Tuple t = new Tuple(td);
-		RecordId rid = new RecordId(pid, slotId);
-		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+	/**
+	 * Returns the tuple in a used slot, decoding it from the page data if
+	 * this is the first time it is asked for.
+	 */
+	private Tuple tuple(int slotId) {
+		Tuple t = tuples[slotId];
+		if (t == null) {
+			// a used slot with no tuple still holds what was read from disk
+			t = new Tuple(td, data, slotOffset(slotId));
+			t.setRecordId(new RecordId(pid, slotId));
+			tuples[slotId] = t;
 		}
-
 		return t;
 	}
 
@@ -249,6 +260,16 @@ public class BTreeLeafPage extends BTreePage {
 				continue;
 			}
 
+			// non-empty slot that was never decoded: still as on disk
+			if (tuples[i] == null) {
+				try {
+					dos.write(data, slotOffset(i), td.getSize());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+
 			// non-empty slot
 			for (int j=0; j<td.numFields(); j++) {
 				Field f = tuples[i].getField(j);
@@ -327,7 +348,7 @@ public class BTreeLeafPage extends BTreePage {
 		Field key = t.getField(keyField);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(tuple(i).getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -366,7 +387,7 @@ public class BTreeLeafPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
+			tuples[to] = tuple(from);
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
 		}
@@ -509,7 +530,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+			return tuple(i);
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
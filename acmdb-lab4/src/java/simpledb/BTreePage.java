@@ -16,6 +16,7 @@ import simpledb.Predicate.Op;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	private volatile long lsn;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -25,7 +26,19 @@ public abstract class BTreePage implements Page {
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final Object oldDataLock=new Object();
+
+	/**
+	 * Gives this page the before image of another version of it, e.g. of the one it
+	 * replaces in the buffer pool.
+	 */
+	void setBeforeImage(Page other) {
+		byte[] before = other.getBeforeImage().getPageData().clone();
+		synchronized(oldDataLock)
+		{
+			oldData = before;
+		}
+	}
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -131,6 +144,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
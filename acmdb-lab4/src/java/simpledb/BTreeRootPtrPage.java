@@ -14,6 +14,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -51,6 +52,14 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/**
+	 * Gives this page the before image of another version of it, e.g. of the one it
+	 * replaces in the buffer pool.
+	 */
+	void setBeforeImage(Page other) {
+		oldData = other.getBeforeImage().getPageData().clone();
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -138,6 +147,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
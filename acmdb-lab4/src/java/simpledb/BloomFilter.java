@@ -0,0 +1,69 @@
+package simpledb;
+
+/**
+ * A Bloom filter over the hash codes of join keys.  A hash join fills one
+ * with the keys of its build side and hands it to the scan of its probe
+ * side, which can then drop tuples whose key surely has no match without
+ * decoding them.  It never rejects a key that was added, so the join still
+ * checks every tuple it gets.
+ * <p>
+ * It is only used by the thread running the query.
+ */
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 3;
+
+    private final long[] bits;
+    private final int mask;
+    private long rejected;
+
+    /** Creates a filter sized for about keys keys. */
+    BloomFilter(int keys) {
+        int size = 64;
+        while (size < (long) keys * BITS_PER_KEY && size < (1 << 30)) {
+            size <<= 1;
+        }
+        bits = new long[size / 64];
+        mask = size - 1;
+    }
+
+    /** @return the i-th bit index of the key with hash code h */
+    private int bit(int h, int i) {
+        // double hashing: h1 + i * h2, from two mixes of h
+        int h1 = h * 0x9E3779B1;
+        int h2 = (h ^ (h >>> 15)) * 0x85EBCA6B | 1;
+        int b = h1 + i * h2;
+        return (b ^ (b >>> 16)) & mask;
+    }
+
+    /** Adds the key whose hash code is h. */
+    void add(int h) {
+        for (int i = 0; i < HASHES; i++) {
+            int b = bit(h, i);
+            bits[b >>> 6] |= 1L << b;
+        }
+    }
+
+    /** @return false if no key with hash code h was added */
+    boolean mightContain(int h) {
+        for (int i = 0; i < HASHES; i++) {
+            int b = bit(h, i);
+            if ((bits[b >>> 6] & (1L << b)) == 0) {
+                rejected++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the bytes its bits take */
+    int sizeBytes() {
+        return bits.length * 8;
+    }
+
+    /** @return the number of keys mightContain rejected */
+    long getRejected() {
+        return rejected;
+    }
+}
@@ -1,10 +1,20 @@
 package simpledb;
 
-import javax.xml.crypto.Data;
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -30,30 +40,105 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    private final int maxPages;
+    // page table: maps a cached page to the frame slot that holds it
+    private final ConcurrentHashMap<PageId, Integer> pageTable;
+    private final AtomicReferenceArray<Page> frames;
+    private final EvictionPolicy policy;
+    // frame slots not holding any page, protected by frameLock
+    private final ArrayDeque<Integer> freeFrames;
+    // guards frame allocation and eviction; never held across a disk read
+    private final Lock frameLock;
+    // loads in progress, so concurrent misses on one page share a single read
+    private final ConcurrentHashMap<PageId, FutureTask<Page>> loading;
+    // background threads that load pages ahead of sequential scans
+    private final ThreadPoolExecutor readAheadExecutor;
+    private volatile int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+    // table, page and record locks held by transactions, for strict two-phase locking
+    private final LockManager lockManager = new LockManager();
+    // records changed under intention locks on their page, per transaction;
+    // each list is only touched by its transaction's thread
+    private final ConcurrentHashMap<TransactionId, ArrayList<RecordChange>> recordChanges =
+            new ConcurrentHashMap<TransactionId, ArrayList<RecordChange>>();
+    // pages whose before image misses tuples changed under intention locks
+    // since it was taken; it is taken again when a page is next locked
+    // exclusively, which waits for those changes to commit or be undone
+    private final Set<PageId> staleBeforeImages =
+            Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+    // commits and snapshots, for tables with multi-version concurrency control
+    private final VersionManager versions = new VersionManager();
+    // page versions and workspaces of optimistic transactions
+    private final OptimisticValidator validator = new OptimisticValidator();
+    // background thread that frees versions no snapshot can see, made by
+    // the first vacuum so pools without multi-version tables have none
+    private volatile ThreadPoolExecutor vacuumExecutor;
+    private final AtomicBoolean vacuumScheduled = new AtomicBoolean();
+    private final AtomicLong vacuumFailures = new AtomicLong();
+    // transactions whose pages are logged for their commit, so it need not write them
+    private final Set<TransactionId> loggedCommits =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+    private static class RecordChange {
+        final RecordId rid;
+        final boolean inserted;
+
+        RecordChange(RecordId rid, boolean inserted) {
+            this.rid = rid;
+            this.inserted = inserted;
+        }
+    }
+
+    /** Default upper bound on the number of pages a scan reads ahead. */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 32;
+
+    // static, so idle read-ahead threads do not keep a discarded pool reachable
+    private static final ThreadFactory READ_AHEAD_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-readahead");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final ThreadFactory VACUUM_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-vacuum");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
-    private Page[] pages;
-    private HashMap<PageId, Page> pageMap;
-    private int maxPages;
-    private int curPages;
-    private Lock getPageLock;
-    private LinkedList<PageId> LRU;
-    private Boolean[] empty;
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy replacement policy sized for numPages frames
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         // some code goes here
         maxPages = numPages;
-        pages = new Page[numPages];
-        pageMap = new HashMap<>();
-        LRU = new LinkedList<>();
-        curPages = 0;
-        empty = new Boolean[numPages];
+        this.policy = policy;
+        pageTable = new ConcurrentHashMap<>();
+        frames = new AtomicReferenceArray<>(numPages);
+        freeFrames = new ArrayDeque<>(numPages);
         for (int i = 0; i < numPages; i++) {
-            empty[i] = true;
+            freeFrames.add(i);
         }
-        getPageLock = new ReentrantLock();
+        frameLock = new ReentrantLock();
+        loading = new ConcurrentHashMap<>();
+        readAheadExecutor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), READ_AHEAD_THREADS);
+        readAheadExecutor.allowCoreThreadTimeOut(true);
     }
     
     public static int getPageSize() {
@@ -72,7 +157,37 @@ public class BufferPool {
 
 
     public int getCur() {
-        return curPages;
+        return pageTable.size();
+    }
+
+    /** @return the replacement policy of this pool, including its hit/miss counters */
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
+    }
+
+    /** @return the commits and snapshots of multi-version tables */
+    VersionManager getVersionManager() {
+        return versions;
+    }
+
+    /** @return the number of background vacuum runs that failed */
+    public long getVacuumFailures() {
+        return vacuumFailures.get();
+    }
+
+    /** @return the number of deadlocks found, each of which aborted one transaction */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlocks();
+    }
+
+    /** @return the number of optimistic transactions that failed validation */
+    public long getValidationFailures() {
+        return validator.getFailures();
+    }
+
+    /** @return the total time transactions have spent waiting for page locks, in ms */
+    public long getLockWaitMillis() {
+        return lockManager.getWaitMillis();
     }
 
     /**
@@ -89,62 +204,426 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if waiting for the lock would
+     *   deadlock and tid is the youngest transaction in the cycle
      */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        OptimisticValidator.Workspace workspace = tid == null ? null : validator.workspace(tid);
+        if (workspace != null && pid instanceof HeapPageId) {
+            return getOptimisticPage(workspace, pid, perm);
+        }
+        if (tid != null) {
+            boolean write = perm == Permissions.READ_WRITE;
+            lockManager.acquire(tid, LockManager.tableKey(pid.getTableId()),
+                    write ? LockManager.Mode.IX : LockManager.Mode.IS);
+            lockManager.acquire(tid, pid, write ? LockManager.Mode.X : LockManager.Mode.S);
+            if (write) {
+                return exclusivePage(tid, pid);
+            }
+        }
+        return cachedPage(pid);
+    }
 
+    /**
+     * Returns a page tid just locked exclusively, taking its before image
+     * again if it is stale.  Unless tid changed tuples under intention
+     * locks itself, every change on the page is committed now.
+     */
+    private Page exclusivePage(TransactionId tid, PageId pid) throws DbException {
+        Page page = cachedPage(pid);
+        if (staleBeforeImages.contains(pid) && !recordChanges.containsKey(tid)
+                && staleBeforeImages.remove(pid)) {
+            page.setBeforeImage();
+        }
+        return page;
+    }
 
-    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    /**
+     * getPage for an optimistic transaction.  No locks are taken; the
+     * version of the page is noted for validation, and a page to change is
+     * copied into the transaction's workspace, where only it sees the
+     * changes until it commits.
+     */
+    private Page getOptimisticPage(OptimisticValidator.Workspace workspace, PageId pid,
+            Permissions perm) throws DbException {
+        Page page = workspace.writes.get(pid);
+        if (page != null) {
+            return page;
+        }
+        // the version before the page, so a page changed in between only looks stale
+        long version = validator.version(pid);
+        page = cachedPage(pid);
+        if (!workspace.reads.containsKey(pid)) {
+            workspace.reads.put(pid, version);
+        }
+        if (perm == Permissions.READ_WRITE) {
+            try {
+                page = new HeapPage((HeapPageId) pid, page.getPageData());
+            } catch (IOException e) {
+                throw new DbException("unable to copy page " + pid);
+            }
+            workspace.writes.put(pid, page);
+        }
+        return page;
+    }
+
+    /**
+     * Retrieves a page like getPage, but returns null instead of waiting
+     * when another transaction holds a conflicting lock, for callers that
+     * hold latches and so must never wait for a lock.
+     */
+    Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (tid != null) {
+            boolean write = perm == Permissions.READ_WRITE;
+            if (!lockManager.tryAcquire(tid, LockManager.tableKey(pid.getTableId()),
+                    write ? LockManager.Mode.IX : LockManager.Mode.IS)
+                    || !lockManager.tryAcquire(tid, pid, write ? LockManager.Mode.X : LockManager.Mode.S)) {
+                return null;
+            }
+            if (write) {
+                return exclusivePage(tid, pid);
+            }
+        }
+        return cachedPage(pid);
+    }
+
+    /**
+     * Retrieves a page for reading or changing single records on it.  Only
+     * intention locks are taken on the page and its table, so transactions
+     * working on different records of the page do not block each other;
+     * the caller must lock each record it reads or changes with lockRecord.
+     * A page is not evicted while a transaction may change records on it,
+     * so all of them work on the same copy.
+     *
+     * @param write true to change records, false to only read them
+     */
+    Page getPageForRecords(TransactionId tid, PageId pid, boolean write)
         throws TransactionAbortedException, DbException {
-        getPageLock.lock();
+        LockManager.Mode mode = write ? LockManager.Mode.IX : LockManager.Mode.IS;
+        lockManager.acquire(tid, LockManager.tableKey(pid.getTableId()), mode);
+        lockManager.acquire(tid, pid, mode);
+        return cachedPage(pid);
+    }
 
+    /**
+     * Retrieves a page like getPageForRecords, but returns null instead of
+     * waiting when another transaction holds a conflicting lock.
+     */
+    Page tryGetPageForRecords(TransactionId tid, PageId pid, boolean write) throws DbException {
+        LockManager.Mode mode = write ? LockManager.Mode.IX : LockManager.Mode.IS;
+        if (!lockManager.tryAcquire(tid, LockManager.tableKey(pid.getTableId()), mode)
+                || !lockManager.tryAcquire(tid, pid, mode)) {
+            return null;
+        }
+        return cachedPage(pid);
+    }
+
+    /**
+     * Locks a record on a page that tid got from getPageForRecords,
+     * shared to read it or exclusive to change it.
+     */
+    void lockRecord(TransactionId tid, RecordId rid, boolean write)
+        throws TransactionAbortedException {
+        lockManager.acquire(tid, rid, write ? LockManager.Mode.X : LockManager.Mode.S);
+    }
+
+    /**
+     * Locks a record like lockRecord if that can be done without waiting,
+     * e.g. to claim a free slot while holding the page's latch.
+     * @return true if tid now holds the lock
+     */
+    boolean tryLockRecord(TransactionId tid, RecordId rid, boolean write) {
+        return lockManager.tryAcquire(tid, rid, write ? LockManager.Mode.X : LockManager.Mode.S);
+    }
+
+    /**
+     * Runs tid under optimistic concurrency control from now on.  It reads
+     * heap pages without locks, and changes copies of them that no other
+     * transaction sees, until it is validated and commits.  Pages of other
+     * files are locked as usual.  This suits short transactions that
+     * rarely conflict, where locking would cost more than the occasional
+     * abort.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        validator.begin(tid);
+    }
+
+    /**
+     * Validates an optimistic transaction before it commits.  The pages it
+     * read are locked shared and the ones it changed exclusively, in a
+     * fixed order, and none of them may have changed since it read them;
+     * the locks keep it that way until it completes.  Does nothing for
+     * other transactions.  Transaction.commit calls this.
+     *
+     * @throws TransactionAbortedException if a page changed, or waiting
+     *   for a lock would deadlock
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        OptimisticValidator.Workspace workspace = validator.workspace(tid);
+        if (workspace == null || workspace.validated) {
+            return;
+        }
+        ArrayList<PageId> pids = new ArrayList<PageId>(workspace.reads.keySet());
+        Collections.sort(pids, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId()) {
+                    return a.getTableId() < b.getTableId() ? -1 : 1;
+                }
+                return Integer.compare(a.pageNumber(), b.pageNumber());
+            }
+        });
+        for (PageId pid : pids) {
+            Page copy = workspace.writes.get(pid);
+            // copies made but left unchanged count as reads
+            boolean write = copy != null && copy.isDirty() != null;
+            lockManager.acquire(tid, LockManager.tableKey(pid.getTableId()),
+                    write ? LockManager.Mode.IX : LockManager.Mode.IS);
+            lockManager.acquire(tid, pid, write ? LockManager.Mode.X : LockManager.Mode.S);
+        }
+        if (!validator.unchanged(workspace)) {
+            throw new TransactionAbortedException();
+        }
+        workspace.validated = true;
+    }
+
+    /**
+     * Locks a whole table, shared to read or exclusive to change it, so
+     * that no page or record lock needs to be taken in it afterwards.
+     * Waits while other transactions hold conflicting locks on the table
+     * or anything in it.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if waiting for the lock would
+     *   deadlock and tid is the youngest transaction in the cycle
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquire(tid, LockManager.tableKey(tableId),
+                perm == Permissions.READ_WRITE ? LockManager.Mode.X : LockManager.Mode.S);
+    }
+
+    /**
+     * Remembers that tid inserted or deleted a record on a page it holds an
+     * intention lock on.  Page-level undo would throw away other
+     * transactions' changes to the page, so on abort these are undone one
+     * by one instead; deletes leave a ghost, which is purged on commit.
+     */
+    void addRecordChange(TransactionId tid, RecordId rid, boolean inserted) {
+        ArrayList<RecordChange> changes = recordChanges.get(tid);
+        if (changes == null) {
+            changes = new ArrayList<RecordChange>();
+            recordChanges.put(tid, changes);
+        }
+        changes.add(new RecordChange(rid, inserted));
+    }
+
+    /** Returns pid from the pool, reading it if needed.  Takes no locks. */
+    private Page cachedPage(PageId pid) throws DbException {
+        // hits only consult the page table and tell the policy
+        int frame = frameOf(pid);
+        if (frame != -1) {
+            Page page = frames.get(frame);
+            if (page != null && page.getId().equals(pid)) {
+                policy.recordHit(frame, pid);
+                return page;
+            }
+        }
+        return fetch(pid);
+    }
+
+    /**
+     * Returns pid from the pool, reading it from disk if needed.  The first
+     * thread to miss on pid reads it and counts the miss; later ones wait
+     * for that read.
+     */
+    private Page fetch(final PageId pid) throws DbException {
+        FutureTask<Page> load = new FutureTask<>(new Callable<Page>() {
+            public Page call() throws DbException {
+                return loadPage(pid);
+            }
+        });
+        FutureTask<Page> running = loading.putIfAbsent(pid, load);
+        if (running == null) {
+            running = load;
+            policy.recordMiss(pid);
+            try {
+                load.run();
+            } finally {
+                loading.remove(pid, load);
+            }
+        }
         try {
-            /*for (int i = 0; i < maxPages; i++) {
-                if (empty[i] == false && pages[i].getId().equals(pid)) {
-                    LRU.remove(LRU.indexOf(i));
-                    LRU.add(i);
-                    return pages[i];
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while loading page " + pid);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            throw new DbException("unable to read page " + pid + ": " + cause);
+        }
+    }
+
+    /**
+     * @return the number of pages a single scan may read ahead in this pool;
+     *   0 if read-ahead is disabled.  Never more than a quarter of the pool.
+     */
+    public int getReadAheadPages() {
+        return Math.min(readAheadPages, maxPages / 4);
+    }
+
+    /**
+     * Sets the upper bound on the number of pages a scan reads ahead.
+     * @param pages the new bound, 0 to disable read-ahead
+     */
+    public void setReadAheadPages(int pages) {
+        readAheadPages = pages;
+    }
+
+    /**
+     * Loads the given pages into the pool in the background, in order.
+     * Pages that are already cached or being read are skipped.  No locks
+     * are acquired; the scan that later asks for a page via getPage does that.
+     */
+    public void prefetchPages(final List<PageId> pids) {
+        readAhead(new Runnable() {
+            public void run() {
+                for (PageId pid : pids) {
+                    if (readAheadPage(pid) == null) {
+                        return;
+                    }
                 }
-            }*/
-            if (pageMap.containsKey(pid)) {
-                LRU.remove(pid);
-                LRU.add(pid);
-                return pageMap.get(pid);
-            }
-            if (pageMap.size() == maxPages) {
-                evictPage();
-            }
-
-            int tableId = pid.getTableId();
-            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-            Page page = file.readPage(pid);
-            LRU.add(pid);
-            pageMap.put(pid, page);
-            //insertPage(page);
-            return page;
-        } catch(Exception ex) {
-            if (ex instanceof DbException) {
-                throw new DbException("GG");
             }
-            if (ex instanceof NoSuchElementException) {
-                ex.printStackTrace();
-                throw new DbException("No required Table");
+        });
+    }
+
+    /**
+     * Runs a read-ahead task on the pool's background threads.
+     * @return false if the task was dropped; read-ahead is only a hint
+     */
+    boolean readAhead(Runnable task) {
+        try {
+            readAheadExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Brings pid into the pool on behalf of a read-ahead task.
+     * @return the page, or null if it could not be read
+     */
+    Page readAheadPage(PageId pid) {
+        try {
+            Page page = lookup(pid);
+            return page != null ? page : fetch(pid);
+        } catch (DbException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a page from its file and installs it in the pool.  The read is
+     * done without holding frameLock; if another version of the page was
+     * cached in the meantime (e.g. by insertTuple) that version wins.
+     */
+    private Page loadPage(PageId pid) throws DbException {
+        Page page = lookup(pid);
+        if (page != null) {
+            return page;
+        }
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException ex) {
+            throw new DbException("No required Table");
+        }
+        page = file.readPage(pid);
+        if (page == null) {
+            throw new DbException("unable to read page " + pid);
+        }
+
+        frameLock.lock();
+        try {
+            Page cached = lookup(pid);
+            if (cached != null) {
+                return cached;
             }
+            install(page);
+            return page;
         } finally {
-            getPageLock.unlock();
+            frameLock.unlock();
+        }
+    }
+
+    /** Returns the frame holding pid, or -1 if it is not cached. */
+    private int frameOf(PageId pid) {
+        Integer frame = pageTable.get(pid);
+        return frame == null ? -1 : frame;
+    }
+
+    /** Returns the cached page with the given id, or null if it is not in the pool. */
+    private Page lookup(PageId pid) {
+        int frame = frameOf(pid);
+        if (frame == -1) {
+            return null;
+        }
+        Page page = frames.get(frame);
+        // the frame may have been recycled since the table was consulted
+        if (page == null || !page.getId().equals(pid)) {
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * Places a page in a free frame, evicting a page first if the pool is full.
+     * Must be called with frameLock held.
+     */
+    private void install(Page page) throws DbException {
+        Integer frame = freeFrames.poll();
+        if (frame == null) {
+            evictPage();
+            frame = freeFrames.poll();
         }
-        return null;
+        frames.set(frame, page);
+        pageTable.put(page.getId(), frame);
+        policy.admit(frame, page.getId());
     }
 
-    /*private void insertPage(Page page) {
-        curPages++;
-        for (int i = 0; i < maxPages; i++) {
-            if (empty[i]) {
-                LRU.add(i);
-                pages[i] = page;
-                empty[i] = false;
-                break;
+    /**
+     * Puts a page dirtied by an insert or delete into the pool, replacing any
+     * cached version of it, and marks it dirty on behalf of tid.
+     */
+    void cacheDirtyPage(TransactionId tid, Page page)
+            throws DbException, TransactionAbortedException {
+        // normally already held, from the getPage that returned the page, or
+        // an intention lock if the file locks the records it changes
+        LockManager.Mode held = lockManager.modeHeld(tid, page.getId());
+        if (held == null || !held.covers(LockManager.Mode.IX)) {
+            lockManager.acquire(tid, page.getId(), LockManager.Mode.X);
+        }
+        frameLock.lock();
+        try {
+            PageId pid = page.getId();
+            Integer frame = pageTable.get(pid);
+            if (frame != null) {
+                frames.set(frame, page);
+            } else {
+                install(page);
             }
+            page.markDirty(true, tid);
+        } finally {
+            frameLock.unlock();
         }
-    }*/
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -157,6 +636,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -167,32 +647,276 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit the transaction's dirty pages become the pages' new before
+     * images; they are written out, unless logPages logged them.  On abort
+     * the pages it locked exclusively are put back to their before images,
+     * and the records it changed on pages shared with other transactions
+     * are restored one by one.  Only pages the
+     * transaction holds locks on are visited.  Once the versions it wrote
+     * in multi-version tables are committed or undone, vacuum is started
+     * in the background.
+     * <p>
+     * An optimistic transaction is validated first if it has not been, and
+     * aborted if that fails.  On commit its copies of the pages it changed
+     * replace the cached pages.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
 
-    private boolean equal(PageId a, PageId b) {
-        //return a.getTableId() == b.getTableId() && a.pageNumber() == b.pageNumber();
-        return a.equals(b);
-    }
-
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        OptimisticValidator.Workspace workspace = validator.workspace(tid);
+        if (commit && workspace != null && !workspace.validated) {
+            try {
+                validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(tid, false);
+                throw new IOException("transaction " + tid.getId() + " failed validation", e);
+            }
+        }
+        boolean logged = loggedCommits.remove(tid);
+        try {
+            finishRecordChanges(tid, commit);
+            if (commit) {
+                if (workspace != null) {
+                    installWorkspace(tid, workspace);
+                }
+                if (!logged) {
+                    flushPages(tid);
+                }
+                for (PageId pid : lockManager.pagesLockedBy(tid)) {
+                    Page page = lookup(pid);
+                    // pages only read by tid have not changed, and pages
+                    // shared with other writers may hold their changes too
+                    if (page != null && lockManager.modeHeld(tid, pid) == LockManager.Mode.X) {
+                        page.setBeforeImage();
+                    }
+                }
+            } else {
+                for (PageId pid : lockManager.pagesLockedBy(tid)) {
+                    Page page = lookup(pid);
+                    if (page != null && tid.equals(page.isDirty())
+                            && lockManager.modeHeld(tid, pid) == LockManager.Mode.X) {
+                        restorePage(tid, page.getBeforeImage());
+                    }
+                }
+            }
+        } finally {
+            // before other writers can lock tid's records, and only after
+            // an abort has undone its versions
+            if (versions.finish(tid, commit) && versions.hasToVacuum()) {
+                scheduleVacuum();
+            }
+            // what optimistic transactions read of these may have changed,
+            // unless an optimistic transaction aborts, having changed nothing
+            if (workspace == null || commit) {
+                for (PageId pid : lockManager.pagesLockedBy(tid)) {
+                    if (pid instanceof HeapPageId && lockManager.modeHeld(tid, pid) == LockManager.Mode.X) {
+                        validator.changed(pid);
+                    }
+                }
+            }
+            validator.end(tid);
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    /**
+     * Puts back the version of a page from before tid changed it, in place
+     * of the cached one.  It stays dirty, to be written when evicted: it
+     * may hold commits that are not on disk yet.
+     */
+    void restorePage(TransactionId tid, Page before) throws IOException {
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
+            if (file instanceof BTreeFile) {
+                // B+ tree pages are also read under latches alone
+                ((BTreeFile) file).restorePage(tid, before);
+            } else {
+                cacheDirtyPage(tid, before);
+                if (file instanceof HeapFile) {
+                    // an aborted insert may have been the one that filled it
+                    ((HeapFile) file).updateFreeSpace((HeapPage) before);
+                }
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException("unable to restore page " + before.getId(), e);
+        }
+    }
+
+    /**
+     * Logs the pages tid changed, ahead of its commit record.  Once that
+     * is forced, recovery can redo them, so the commit leaves them in the
+     * pool to be written when evicted (NO-FORCE).  Tuples tid changed on
+     * pages shared with other writers under intention locks were logged
+     * one by one as they changed, so those pages are left in the pool too.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        OptimisticValidator.Workspace workspace = validator.workspace(tid);
+        if (workspace != null && !workspace.validated) {
+            // may still fail validation and change nothing
+            return;
+        }
+        LogFile log = Database.getLogFile();
+        if (workspace != null) {
+            for (Page page : workspace.writes.values()) {
+                if (page.isDirty() != null) {
+                    log.logWrite(tid, page.getBeforeImage(), page);
+                }
+            }
+        }
+        for (PageId pid : lockManager.pagesLockedBy(tid)) {
+            Page page = lookup(pid);
+            if (page != null && tid.equals(page.isDirty())
+                    && lockManager.modeHeld(tid, pid) == LockManager.Mode.X) {
+                log.logWrite(tid, page.getBeforeImage(), page);
+            }
+        }
+        loggedCommits.add(tid);
+    }
+
+    /**
+     * Frees the slots of deleted versions in multi-version tables that no
+     * snapshot can see any more.  This runs in the background after
+     * transactions that wrote versions or read snapshots end, and may also
+     * be called directly.
+     *
+     * @return the number of slots freed
+     */
+    public int vacuum() throws IOException {
+        int freed = 0;
+        HeapFile[] files = versions.takeToVacuum();
+        try {
+            for (HeapFile file : files) {
+                freed += file.vacuum(versions);
+            }
+        } finally {
+            // including the files a failure kept from being vacuumed
+            for (HeapFile file : files) {
+                if (file.hasDeadVersions()) {
+                    versions.addToVacuum(file);
+                }
+            }
+        }
+        versions.prune();
+        return freed;
+    }
+
+    /**
+     * Runs vacuum on the background thread, unless a run is already waiting
+     * to start.  A run that fails is counted and logged; the tables it did
+     * not finish stay queued, so the next transaction to end retries them.
+     */
+    private void scheduleVacuum() {
+        if (!vacuumScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (vacuumExecutor == null) {
+            // only the thread that set vacuumScheduled gets here
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), VACUUM_THREADS);
+            executor.allowCoreThreadTimeOut(true);
+            vacuumExecutor = executor;
+        }
+        try {
+            vacuumExecutor.execute(new Runnable() {
+                public void run() {
+                    vacuumScheduled.set(false);
+                    try {
+                        vacuum();
+                    } catch (IOException | RuntimeException e) {
+                        vacuumFailures.incrementAndGet();
+                        Debug.log("BufferPool.vacuum failed: %s", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            vacuumScheduled.set(false);
+        }
+    }
+
+    /** Puts the pages a validated optimistic transaction changed in the pool. */
+    private void installWorkspace(TransactionId tid, OptimisticValidator.Workspace workspace)
+            throws IOException {
+        try {
+            for (Page page : workspace.writes.values()) {
+                if (page.isDirty() != null) {
+                    cacheDirtyPage(tid, page);
+                }
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException("unable to install the pages of transaction " + tid.getId(), e);
+        }
+    }
+
+    /**
+     * Applies the end of a transaction to the records it changed under
+     * intention locks: on commit its deletes are made physical, except for
+     * versions, which vacuum frees once no snapshot sees them; on abort its
+     * changes are undone, newest first, and the restored pages written out
+     * so no aborted change stays on disk.
+     */
+    private void finishRecordChanges(TransactionId tid, boolean commit) throws IOException {
+        ArrayList<RecordChange> changes = recordChanges.remove(tid);
+        if (changes == null) {
+            return;
+        }
+        for (RecordChange change : changes) {
+            staleBeforeImages.add(change.rid.getPageId());
+        }
+        LinkedHashSet<Page> touched = new LinkedHashSet<Page>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            RecordChange change = changes.get(i);
+            if (commit && change.inserted) {
+                continue;
+            }
+            HeapPage page;
+            try {
+                page = (HeapPage) cachedPage(change.rid.getPageId());
+            } catch (DbException e) {
+                throw new IOException("unable to read page " + change.rid.getPageId(), e);
+            }
+            if (commit && page.isVersioned()) {
+                // older snapshots may still see the deleted version
+                continue;
+            }
+            int slot = change.rid.tupleno();
+            if (commit || change.inserted) {
+                page.freeSlot(slot);
+            } else {
+                page.unmarkGhost(slot);
+            }
+            page.markDirty(true, tid);
+            touched.add(page);
+        }
+        for (Page page : touched) {
+            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).updateFreeSpace((HeapPage) page);
+            }
+        }
+        if (!commit) {
+            for (Page page : touched) {
+                writeOut(page, true);
+            }
+        }
     }
 
     /**
@@ -215,51 +939,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> dirty = file.insertTuple(tid, t);
-        /*for (Page page : dirty) {
-            PageId pid = page.getId();
-            boolean found = false;
-            int pos = -1;
-            for (int i = 0; i < maxPages; i++) {
-                if (!empty[i] && equal(pages[i].getId(),pid)) {
-                    found = true;
-                    pos = i;
-                    break;
-                }
-            }
-            if (found) {
-                page.markDirty(true, tid);
-                pages[pos] = page;
-                pages[pos].markDirty(true, tid);
-            } else {
-                if (curPages == maxPages) {
-                    evictPage();
-                }
-                page.markDirty(true, tid);
-                insertPage(page);
-                //page.markDirty(true, tid);
-            }
-        }*/
-        for (Page page : dirty) {
-            PageId pid = page.getId();
-            //System.out.println(pid + " "+ ((BTreePage)page).getNumEmptySlots());
-            /*if (page.getId().pageNumber() == 2) {
-                System.out.println(((BTreePage)page).getNumEmptySlots());
-            }*/
-            if (pageMap.containsKey(pid)) {
-                pageMap.get(pid).markDirty(true, tid);
-               // LRU.remove(pid);
-               // LRU.add(pid);
-            } else {
-                if (pageMap.size() == maxPages) {
-                    evictPage();
-                }
-                pageMap.put(pid, page);
-                LRU.remove(pid);
-                LRU.add(pid);
-                pageMap.get(pid).markDirty(true, tid);
-            }
-        }
+        cacheDirtyPages(tid, file.insertTuple(tid, t));
     }
 
     /**
@@ -280,42 +960,21 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> dirty = file.deleteTuple(tid, t);
-        /*for (Page page : dirty) {
-            PageId pid = page.getId();
-            boolean found = false;
-            int pos = -1;
-            for (int i = 0; i < maxPages; i++) {
-                if (!empty[i] && equal(pages[i].getId(),pid)) {
-                    found = true;
-                    pos = i;
-                    break;
-                }
-            }
-            if (found) {
-                page.markDirty(true, tid);
-                pages[pos] = page;
-                pages[pos].markDirty(true, tid);
-            } else {
-                if (curPages == maxPages) {
-                    evictPage();
-                }
-                page.markDirty(true, tid);
-                insertPage(page);
-            }
-        }*/
+        cacheDirtyPages(tid, file.deleteTuple(tid, t));
+    }
+
+    /**
+     * Caches the pages an insert or delete dirtied, except copies in an
+     * optimistic transaction's workspace, which are only marked dirty.
+     */
+    private void cacheDirtyPages(TransactionId tid, ArrayList<Page> dirty)
+            throws DbException, TransactionAbortedException {
+        OptimisticValidator.Workspace workspace = validator.workspace(tid);
         for (Page page : dirty) {
-            PageId pid = page.getId();
-            if (pageMap.containsKey(pid)) {
-                pageMap.get(pid).markDirty(true, tid);
+            if (workspace != null && workspace.writes.get(page.getId()) == page) {
+                page.markDirty(true, tid);
             } else {
-                if (pageMap.size() == maxPages) {
-                    evictPage();
-                }
-                pageMap.put(pid, page);
-                LRU.remove(pid);
-                LRU.add(pid);
-                pageMap.get(pid).markDirty(true, tid);
+                cacheDirtyPage(tid, page);
             }
         }
     }
@@ -327,17 +986,10 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
-     //   System.out.println("123123");
         // not necessary for lab1
-        /*for (int i = 0; i < maxPages; i++) {
-            if (!empty[i] && pages[i].isDirty() != null) {
-                flushPage(pages[i].getId());
-            }
-        }*/
-        for (PageId pid : pageMap.keySet()) {
+        for (PageId pid : pageTable.keySet()) {
             flushPage(pid);
         }
-
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -348,17 +1000,29 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        /*for (int i = 0; i < maxPages; i++) {
-            if (!empty[i] && equal(pages[i].getId(), pid)) {
-                empty[i] = true;
-                curPages--;
-                break;
-            }
-        }*/
-        pageMap.remove(pid);
+        frameLock.lock();
+        try {
+            removeFrame(pid, false);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Drops a page from the page table and returns its frame to the free list.
+     * Must be called with frameLock held.
+     * @param evicted true if the page was chosen as a victim, not discarded
+     */
+    private void removeFrame(PageId pid, boolean evicted) {
+        Integer frame = pageTable.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            policy.remove(frame, pid, evicted);
+            freeFrames.add(frame);
+        }
     }
 
     /**
@@ -368,22 +1032,63 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        //System.out.println("flush");
-        /*Page page = null;
-        //System.out.println(pid);
-        for (int i = 0; i < maxPages; i++) {
-            if (!empty[i] && equal(pages[i].getId(), pid)) {
-                page = pages[i];
-            }
+        Integer frame = pageTable.get(pid);
+        if (frame == null) {
+            return;
         }
-        if (page != null && page.isDirty() != null) {
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-            page.markDirty(false, null);
-        }*/
-        Page page = pageMap.get(pid);
-        if (page != null && page.isDirty() != null) {
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Page page = frames.get(frame);
+        if (page != null && page.getId().equals(pid)) {
+            writeOut(page, true);
+        }
+    }
+
+    /**
+     * Writes a page to its file if it is dirty.  Takes no locks.  The page
+     * is marked clean before it is written, so a change made to it by
+     * another transaction holding an intention lock meanwhile keeps it dirty.
+     * <p>
+     * A page holding changes of a running, logged transaction is logged
+     * first, so that a rollback or recovery can undo them (STEAL).  Either
+     * way the log is flushed up to the LSN of the page before it is
+     * written (write-ahead logging).  Tuples changed under intention locks
+     * were logged as they changed, under the lock of the log; other
+     * transactions may go on changing such pages, so a copy taken under
+     * that lock, as of its LSN, is written instead.
+     * <p>
+     * A logged page that stays cached becomes its own before image, so
+     * that the record its transaction logs for it next, at commit or on
+     * the next write, holds the changes made since this one.  A page read
+     * back after eviction starts from the written version the same way.
+     *
+     * @param cached true if the page stays in the pool
+     */
+    private void writeOut(Page page, boolean cached) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            LogFile log = Database.getLogFile();
+            if (lockManager.modeHeld(dirtier, page.getId()) == LockManager.Mode.X
+                    && log.logBeforeWrite(dirtier, page) && cached) {
+                page.setBeforeImage();
+            }
+            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             page.markDirty(false, null);
+            Page image = page;
+            long lsn;
+            if (file instanceof HeapFile && ((HeapFile) file).locksRecords()) {
+                synchronized (log) {
+                    lsn = page.getLSN();
+                    image = new HeapPage((HeapPageId) page.getId(), page.getPageData());
+                }
+            } else {
+                lsn = page.getLSN();
+            }
+            try {
+                log.flushTo(lsn);
+                file.writePage(image);
+            } catch (IOException e) {
+                page.markDirty(true, dirtier);
+                throw e;
+            }
         }
     }
 
@@ -392,52 +1097,61 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (PageId pid : lockManager.pagesLockedBy(tid)) {
+            Page page = lookup(pid);
+            // under an intention lock another transaction may have dirtied
+            // the page last, but tid's records on it must be written too
+            LockManager.Mode held = lockManager.modeHeld(tid, pid);
+            if (page != null && page.isDirty() != null
+                    && held != null && held.covers(LockManager.Mode.IX)) {
+                writeOut(page, true);
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * The eviction policy is asked for a clean victim first; only if every
+     * cached page is dirty is a dirty one flushed and evicted.
+     * Must be called with frameLock held.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        //curPages--;
-        //empty[temp] = true;
-        /*curPages--;
-        int temp = -1;
-        for (int i : LRU) {
-            if (pages[i].isDirty() == null) {
-                temp = i;
-            }
-        }
-        if (temp == -1) {
-            temp = LRU.getFirst();
-        }
-        try {
-            flushPage(pages[temp].getId());
-        } catch (Exception e){
-            e.printStackTrace();
-        }
-        LRU.remove(LRU.indexOf(temp));
-        empty[temp] = true;*/
-        PageId toEvict = null;
-        for (PageId pid : LRU) {
-            if (pageMap.get(pid).isDirty() == null) {
-                toEvict = pid;
-                break;
+        int victim = policy.chooseVictim(new EvictionPolicy.FrameFilter() {
+            public boolean accept(int frame) {
+                Page page = frames.get(frame);
+                return evictable(page) && page.isDirty() == null;
             }
+        });
+        if (victim == -1) {
+            victim = policy.chooseVictim(new EvictionPolicy.FrameFilter() {
+                public boolean accept(int frame) {
+                    return evictable(frames.get(frame));
+                }
+            });
         }
-        if (toEvict == null) {
-            toEvict = LRU.getFirst();
+        Page page = victim == -1 ? null : frames.get(victim);
+        if (page == null) {
+            throw new DbException("no page can be evicted from the buffer pool");
         }
         try {
-            flushPage(toEvict);
-        } catch (Exception e){
-            e.printStackTrace();
+            writeOut(page, false);
+        } catch (IOException e) {
+            throw new DbException("unable to flush evicted page " + page.getId());
         }
-        LRU.remove(toEvict);
-        pageMap.remove(toEvict);
+        removeFrame(page.getId(), true);
+    }
 
+    /**
+     * Pages that several transactions may be changing records on stay in
+     * the pool until those finish: each of them holds the cached copy, and
+     * ghosts of uncommitted deletes are only kept in memory.
+     */
+    private boolean evictable(Page page) {
+        return page != null && !lockManager.hasIntentionWriters(page.getId());
     }
 
 }
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining bytes of a ByteBuffer, so page data in a
+ * heap array or a mapped file region can be parsed the same way.
+ * Reading advances the buffer's position.
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+        return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return buf.remaining();
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CLOCK (second-chance) approximation of LRU, the default BufferPool policy.
+ * Each frame carries a reference bit that is set on every hit; the hand
+ * sweeps the frame ring, clearing bits, and takes the first acceptable frame
+ * whose bit is already clear.  Hits only set a bit, so they never contend.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final int numFrames;
+    private final AtomicIntegerArray refBits;
+    // 1 if the frame currently holds a page
+    private final AtomicIntegerArray used;
+    private int hand;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     */
+    public ClockEvictionPolicy(int numFrames) {
+        this.numFrames = numFrames;
+        this.refBits = new AtomicIntegerArray(numFrames);
+        this.used = new AtomicIntegerArray(numFrames);
+        this.hand = 0;
+    }
+
+    public void recordHit(int frame, PageId pid) {
+        hits.incrementAndGet();
+        refBits.set(frame, 1);
+    }
+
+    public void recordMiss(PageId pid) {
+        misses.incrementAndGet();
+    }
+
+    public void admit(int frame, PageId pid) {
+        used.set(frame, 1);
+        refBits.set(frame, 1);
+    }
+
+    public void remove(int frame, PageId pid, boolean evicted) {
+        used.set(frame, 0);
+        refBits.set(frame, 0);
+    }
+
+    /**
+     * Sweeps at most twice around the ring, so every frame gets its second
+     * chance before the filter alone decides.
+     */
+    public int chooseVictim(FrameFilter filter) {
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int frame = hand;
+            hand = (hand + 1) % numFrames;
+            if (used.get(frame) == 0 || !filter.accept(frame)) {
+                continue;
+            }
+            if (refBits.getAndSet(frame, 0) == 0) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
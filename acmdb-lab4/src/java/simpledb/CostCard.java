@@ -11,4 +11,6 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public Vector<LogicalJoinNode> plan;
+    /** The field the subplan returns its tuples in ascending order of, or null */
+    public String sortedOn;
 }
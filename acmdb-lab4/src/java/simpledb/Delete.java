@@ -72,8 +72,8 @@ public class Delete extends Operator {
             try {
                 Database.getBufferPool().deleteTuple(tid, tuple);
                 count++;
-            } catch (Exception e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                throw new DbException("delete failed: " + e.getMessage());
             }
         }
         Tuple tuple = new Tuple(getTupleDesc());
@@ -0,0 +1,51 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which BufferPool frame to give up when the pool is
+ * full.  The BufferPool keeps its pages in a fixed number of frame slots and
+ * tells the policy about every hit, every page that enters a frame and every
+ * page that leaves one; the policy only ranks frames.
+ * <p>
+ * Apart from {@link #recordHit}, {@link #recordMiss} and the counters, all
+ * methods are called with the BufferPool's frame lock held.  recordHit is on
+ * the lock-free hit path and may be called concurrently from many threads.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+    /** Decides whether a frame may be handed out as a victim. */
+    interface FrameFilter {
+        boolean accept(int frame);
+    }
+
+    /** Called when a request for pid was answered from frame. */
+    void recordHit(int frame, PageId pid);
+
+    /** Called when a request for pid had to go to disk. */
+    void recordMiss(PageId pid);
+
+    /** Called when pid is placed in an empty frame. */
+    void admit(int frame, PageId pid);
+
+    /**
+     * Called when pid leaves its frame.
+     *
+     * @param evicted true if the pool chose it as a victim, false if it was
+     *                discarded, e.g. because it was rolled back or deleted
+     */
+    void remove(int frame, PageId pid, boolean evicted);
+
+    /**
+     * Picks the frame to evict next among those accepted by filter.
+     *
+     * @return the victim frame, or -1 if the filter rejects every cached frame
+     */
+    int chooseVictim(FrameFilter filter);
+
+    /** @return the number of requests answered from the pool */
+    long getHits();
+
+    /** @return the number of requests that had to read from disk */
+    long getMisses();
+}
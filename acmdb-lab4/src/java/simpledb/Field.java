@@ -14,6 +14,12 @@ public interface Field extends Serializable{
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the bytes representing this field into buf at offset, in the
+     * same format as {@link #serialize(DataOutputStream)}.
+     */
+    void serialize(byte[] buf, int offset);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
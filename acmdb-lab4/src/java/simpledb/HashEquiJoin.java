@@ -1,19 +1,47 @@
 package simpledb;
 
-import java.lang.reflect.Array;
+import java.io.*;
+import java.text.ParseException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a hybrid hash join: the left child is split by the hash of its join
+ * field into partitions, each with a hash table of its own.  Whenever the
+ * tuples in these tables take more than the memory budget, the largest
+ * partition is spilled to a temporary file, and so are the right tuples
+ * that hash to it.  Right tuples of partitions still in memory are joined
+ * as they are read; then each spilled partition is joined with its right
+ * tuples the same way, split by the next bits of the hash if it still does
+ * not fit.
+ * <p>
+ * When both join fields are INT fields, partitions number their keys with
+ * an {@link IntHashTable} and chain their tuples in flat arrays, so no key
+ * is boxed and no list is allocated per key.
+ * <p>
+ * If the right child is a SeqScan, or Filters over one, the join hands it a
+ * {@link BloomFilter} of the left keys once they are all read, and the scan
+ * skips right tuples that cannot match before decoding them.  The filter is
+ * sized for the estimated number of left tuples, but no more than fit in
+ * the memory budget, and its bits are taken out of that budget.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default memory budget for the hash tables of the left child, in bytes. */
+    public static final int DEFAULT_MEMORY_BYTES = 1 << 20;
+
+    private static final int PARTITION_BITS = 4;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    // each level of spilled partitions is split on the next bits of the hash
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -25,15 +53,46 @@ public class HashEquiJoin extends Operator {
     JoinPredicate pred;
     DbIterator c1, c2;
     Tuple cur1, cur2;
-    HashMap<Field, ArrayList<Tuple> > map;
+    private final int memoryBytes;
+    private final int level;
+    // the left tuples of each partition, or null for a spilled partition
+    private transient Partition[] tables;
+    // the left and right tuples of each spilled partition
+    private transient SpillFile[] spilled1, spilled2;
+    // the next spilled partition to join, and the join of the current one
+    private int spillPos;
+    private HashEquiJoin spillJoin;
+    private long memoryUsed, peakMemory, spilledTuples;
+    private int spilledPartitions;
+    // the scan under the right child, and the filter of left keys given to it
+    private transient SeqScan probeScan;
+    private transient BloomFilter keyFilter;
+
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor that sets the memory budget for the hash tables.
+     *
+     * @param memoryBytes
+     *            The number of bytes of left tuples to keep in hash tables
+     *            before partitions are spilled to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryBytes) {
+        this(p, child1, child2, memoryBytes, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryBytes,
+            int level) {
         // some code goes here
         pred = p;
         c1 = child1;
         c2 = child2;
         cur1 = null;
         cur2 = null;
-        map = new HashMap<>();
+        this.memoryBytes = memoryBytes;
+        this.level = level;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -45,7 +104,7 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return TupleDesc.merge(c1.getTupleDesc(), c2.getTupleDesc());
     }
-    
+
     public String getJoinField1Name()
     {
         // some code goes here
@@ -57,7 +116,38 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return c2.getTupleDesc().getFieldName(pred.getField2());
     }
-    
+
+    /**
+     * @return the most bytes of left tuples held in hash tables, and of the
+     *         key filter, at once since open
+     */
+    public long getPeakMemoryBytes() {
+        return peakMemory;
+    }
+
+    /** @return the number of partitions spilled to disk since open, at any level */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /** @return the number of tuples of either child written to disk since open */
+    public long getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    /** @return the number of right tuples the scan skipped since open, as no left key matched */
+    public long getProbeTuplesSkipped() {
+        return keyFilter == null ? 0 : keyFilter.getRejected();
+    }
+
+    /** @return the SeqScan child reads, if it is one or Filters over one */
+    private static SeqScan scanUnder(DbIterator child) {
+        if (child instanceof Filter) {
+            return scanUnder(((Filter) child).getChildren()[0]);
+        }
+        return child instanceof SeqScan ? (SeqScan) child : null;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
@@ -66,21 +156,106 @@ public class HashEquiJoin extends Operator {
         c2.open();
         cur1 = null;
         cur2 = null;
-        map.clear();
-        while (c1.hasNext()) {
-            Tuple t = c1.next();
-            Field f = t.getField(pred.getField1());
-            if (map.containsKey(f)) {
-                ArrayList<Tuple> a = map.get(f);
-                a.add(t);
-                map.put(f, a);
-            } else {
-                ArrayList<Tuple> a = new ArrayList<>();
-                a.add(t);
-                map.put(f, a);
+        boolean intKeys = c1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && c2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        tables = new Partition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            tables[i] = new Partition(intKeys);
+        }
+        probed = null;
+        chain = 0;
+        spilled1 = new SpillFile[PARTITIONS];
+        spilled2 = new SpillFile[PARTITIONS];
+        spillPos = 0;
+        memoryUsed = 0;
+        peakMemory = 0;
+        spilledTuples = 0;
+        spilledPartitions = 0;
+        int tupleBytes = c1.getTupleDesc().getSize();
+        // spilled partitions are joined from files, which cannot be filtered
+        probeScan = level == 0 ? scanUnder(c2) : null;
+        keyFilter = null;
+        if (probeScan != null) {
+            // left tuples past the estimate only make it denser
+            keyFilter = new BloomFilter(buildEstimate(tupleBytes));
+            memoryUsed = keyFilter.sizeBytes();
+        }
+        try {
+            while (c1.hasNext()) {
+                Tuple t = c1.next();
+                Field f = t.getField(pred.getField1());
+                if (keyFilter != null) {
+                    keyFilter.add(f.hashCode());
+                }
+                int p = partition(f);
+                if (spilled1[p] != null) {
+                    spilled1[p].write(t);
+                    spilledTuples++;
+                    continue;
+                }
+                tables[p].add(f, t);
+                memoryUsed += tupleBytes;
+                while (memoryUsed > memoryBytes && spillLargest(tupleBytes)) {
+                }
+                peakMemory = Math.max(peakMemory, memoryUsed);
             }
+        } catch (IOException e) {
+            throw new DbException("hash join spill failed: " + e.getMessage());
+        }
+        if (probeScan != null) {
+            probeScan.setKeyFilter(pred.getField2(), keyFilter);
+        }
+    }
+
+    /**
+     * @return the estimated number of left tuples, from the optimizer or
+     *         the pages of a scanned file, but no more than fit in memory
+     */
+    private int buildEstimate(int tupleBytes) {
+        long keys = memoryBytes / Math.max(tupleBytes, 1);
+        if (c1 instanceof Operator && ((Operator) c1).getEstimatedCardinality() > 0) {
+            keys = Math.min(keys, ((Operator) c1).getEstimatedCardinality());
+        } else if (c1 instanceof SeqScan && ((SeqScan) c1).getFile() instanceof HeapFile) {
+            long pages = ((HeapFile) ((SeqScan) c1).getFile()).numPages();
+            keys = Math.min(keys, pages * BufferPool.getPageSize() / Math.max(tupleBytes, 1));
         }
-        c1.rewind();
+        return (int) keys;
+    }
+
+    /** @return the partition of key at this level */
+    private int partition(Field key) {
+        int h = key.hashCode() * 0x9E3779B1;
+        return (h >>> (32 - (level + 1) * PARTITION_BITS)) & (PARTITIONS - 1);
+    }
+
+    /**
+     * Writes the largest partition in memory to disk.
+     * @return false if no partition can be spilled
+     */
+    private boolean spillLargest(int tupleBytes) throws IOException {
+        if (level >= MAX_LEVEL) {
+            return false;
+        }
+        int p = -1;
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (tables[i] != null && tables[i].size > 0 && (p < 0 || tables[i].size > tables[p].size)) {
+                p = i;
+            }
+        }
+        if (p < 0) {
+            return false;
+        }
+        spilled1[p] = new SpillFile(c1.getTupleDesc());
+        spilled2[p] = new SpillFile(c2.getTupleDesc());
+        Partition spilled = tables[p];
+        for (int i = 0; i < spilled.size; i++) {
+            spilled1[p].write(spilled.tuples[i]);
+        }
+        tables[p] = null;
+        memoryUsed -= (long) spilled.size * tupleBytes;
+        spilledTuples += spilled.size;
+        spilledPartitions++;
+        return true;
     }
 
     public void close() {
@@ -89,8 +264,29 @@ public class HashEquiJoin extends Operator {
         c2.close();
         cur1 = null;
         cur2 = null;
-        listIt = null;
-        map.clear();
+        probed = null;
+        chain = 0;
+        tables = null;
+        if (probeScan != null) {
+            probeScan.setKeyFilter(0, null);
+            probeScan = null;
+        }
+        if (spillJoin != null) {
+            spillJoin.close();
+            spillJoin = null;
+        }
+        for (SpillFile[] files : new SpillFile[][] { spilled1, spilled2 }) {
+            if (files != null) {
+                for (SpillFile f : files) {
+                    if (f != null) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+        spilled1 = null;
+        spilled2 = null;
+        memoryUsed = 0;
         // some code goes here
     }
 
@@ -100,7 +296,9 @@ public class HashEquiJoin extends Operator {
         open();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    // the partition cur2 was found in, and the next left tuple to join it with
+    private transient Partition probed;
+    private int chain;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -116,36 +314,80 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (listIt == null || !listIt.hasNext()) {
-            while (c2.hasNext()) {
+        try {
+            while (tables != null) {
+                if (chain != 0) {
+                    cur1 = probed.tuples[chain - 1];
+                    chain = probed.next[chain - 1];
+                    return merge(cur1, cur2);
+                }
+                if (!c2.hasNext()) {
+                    // the partitions in memory are done with
+                    tables = null;
+                    memoryUsed = 0;
+                    break;
+                }
                 cur2 = c2.next();
                 Field f = cur2.getField(pred.getField2());
-                if (map.containsKey(f)) {
-                    ArrayList<Tuple> a = map.get(f);
-                    listIt = a.iterator();
-                    break;
+                int p = partition(f);
+                probed = tables[p];
+                if (probed == null) {
+                    spilled2[p].write(cur2);
+                    spilledTuples++;
+                } else {
+                    chain = probed.find(f);
                 }
             }
+        } catch (IOException e) {
+            throw new DbException("hash join spill failed: " + e.getMessage());
         }
-        if (listIt == null || !listIt.hasNext()) {
-            return null;
+        return nextSpilled();
+    }
+
+    /** @return the next tuple of the joins of the spilled partitions, or null */
+    private Tuple nextSpilled() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (spillJoin != null) {
+                if (spillJoin.hasNext()) {
+                    return spillJoin.next();
+                }
+                spillJoin.close();
+                peakMemory = Math.max(peakMemory, spillJoin.getPeakMemoryBytes());
+                spilledPartitions += spillJoin.getSpilledPartitions();
+                spilledTuples += spillJoin.getSpilledTuples();
+                spillJoin = null;
+                spilled1[spillPos - 1].delete();
+                spilled2[spillPos - 1].delete();
+            }
+            while (spillPos < PARTITIONS && spilled1[spillPos] == null) {
+                spillPos++;
+            }
+            if (spillPos == PARTITIONS) {
+                return null;
+            }
+            spillJoin = new HashEquiJoin(pred, spilled1[spillPos].finish(),
+                    spilled2[spillPos].finish(), memoryBytes, level + 1);
+            spillPos++;
+            spillJoin.open();
         }
-        cur1 = listIt.next();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
         TupleDesc td = getTupleDesc();
         Tuple ret = new Tuple(td);
         int len = td.numFields();
-        int len1 = cur1.getTupleDesc().numFields();
+        int len1 = c1.getTupleDesc().numFields();
         for (int i = 0; i < len; i++) {
             if (i < len1) {
-                ret.setField(i, cur1.getField(i));
+                ret.setField(i, t1.getField(i));
             } else {
-                ret.setField(i, cur2.getField(i-len1));
+                ret.setField(i, t2.getField(i-len1));
             }
         }
         return ret;
@@ -167,5 +409,162 @@ public class HashEquiJoin extends Operator {
         c2 = children[1];
         cur1 = null;
     }
-    
+
+    /**
+     * The left tuples of one partition.  Tuples with the same key are
+     * chained, newest first; chain positions are tuple indexes plus one, and
+     * 0 ends a chain.
+     */
+    private static class Partition {
+        // the numbers of the keys, by INT key or by any other field
+        private final IntHashTable intKeys;
+        private final HashMap<Field, Integer> keys;
+        // the newest tuple with each key, by key number
+        private int[] heads = new int[16];
+        Tuple[] tuples = new Tuple[16];
+        // the tuple before each with the same key
+        int[] next = new int[16];
+        int size;
+
+        Partition(boolean intKeys) {
+            this.intKeys = intKeys ? new IntHashTable(16) : null;
+            keys = intKeys ? null : new HashMap<Field, Integer>();
+        }
+
+        void add(Field key, Tuple t) {
+            int n;
+            if (intKeys != null) {
+                n = intKeys.add(((IntField) key).getValue());
+            } else {
+                Integer known = keys.get(key);
+                n = known == null ? keys.size() : known;
+                if (known == null) {
+                    keys.put(key, n);
+                }
+            }
+            if (n == heads.length) {
+                heads = Arrays.copyOf(heads, n * 2);
+            }
+            if (size == tuples.length) {
+                tuples = Arrays.copyOf(tuples, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+            }
+            tuples[size] = t;
+            next[size] = heads[n];
+            heads[n] = ++size;
+        }
+
+        /** @return the chain of the tuples with key, 0 if there are none */
+        int find(Field key) {
+            int n;
+            if (intKeys != null) {
+                n = intKeys.find(((IntField) key).getValue());
+            } else {
+                Integer known = keys.get(key);
+                n = known == null ? -1 : known;
+            }
+            return n < 0 ? 0 : heads[n];
+        }
+    }
+
+    /** Tuples written to a temporary file, and read back in the same order. */
+    private static class SpillFile implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private final File file;
+        private transient DataOutputStream out;
+        private transient DataInputStream in;
+        private int size, read;
+
+        SpillFile(TupleDesc td) throws IOException {
+            this.td = td;
+            file = File.createTempFile("hashjoin", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        void write(Tuple t) throws IOException {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+            size++;
+        }
+
+        /** Ends writing, so that the tuples can be read. */
+        SpillFile finish() throws DbException {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    throw new DbException("hash join spill failed: " + e.getMessage());
+                }
+                out = null;
+            }
+            return this;
+        }
+
+        public void open() throws DbException {
+            finish();
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("hash join spill failed: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < size;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+            } catch (ParseException e) {
+                throw new DbException("hash join spill failed: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to read from it
+                }
+                in = null;
+            }
+        }
+
+        /** Closes the file and removes it. */
+        void delete() {
+            try {
+                finish();
+            } catch (DbException e) {
+                // it is thrown away anyway
+            }
+            close();
+            file.delete();
+        }
+    }
+
 }
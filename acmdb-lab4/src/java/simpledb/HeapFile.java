@@ -4,6 +4,7 @@ import sun.reflect.annotation.ExceptionProxy;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -27,10 +28,22 @@ public class HeapFile implements DbFile {
      */
     private File file;
     private TupleDesc tupleDesc;
+    private PagedFile pages;
+    // free-space map: pages known to have no empty slot.  Pages not set
+    // may have room, so pages added behind our back are still tried.
+    // It is only a hint; inserts check the page itself.
+    private final BitSet fullPages = new BitSet();
+    // pages holding deleted versions that vacuum has not freed yet
+    private final BitSet deadPages = new BitSet();
+    private volatile boolean recordLocking;
+    private volatile boolean multiVersion;
+    // set once getFile() handed the file out, to be appended to behind our back
+    private volatile boolean exposed;
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         file = f;
         tupleDesc = td;
+        pages = new PagedFile(f);
     }
 
     /**
@@ -40,6 +53,7 @@ public class HeapFile implements DbFile {
      */
     public File getFile() {
         // some code goes here
+        exposed = true;
         return file;
     }
 
@@ -69,17 +83,73 @@ public class HeapFile implements DbFile {
         //throw new UnsupportedOperationException("implement this");
     }
 
+    /**
+     * Turns memory-mapped reads on or off.  In this mode pages are built
+     * straight from a read-only mapping of the file instead of being read
+     * into a byte array first, which suits large tables that are rarely
+     * updated.  Writes are unaffected.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        pages.setMemoryMapped(memoryMapped);
+    }
+
+    public boolean isMemoryMapped() {
+        return pages.isMemoryMapped();
+    }
+
+    /**
+     * Turns record locking on or off.  By default transactions lock whole
+     * pages.  In this mode they only take intention locks on pages, and
+     * shared or exclusive locks on the records they read, insert or delete,
+     * so writers of different records on one page do not wait for each
+     * other.  This suits small, hot tables with many rows per page.  Deletes
+     * leave a ghost that other transactions cannot see past until the
+     * delete commits.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Turns multi-version concurrency control on or off.  In this mode
+     * every version of a record carries the transactions that created and
+     * deleted it, readers see a snapshot as of their first read of a
+     * multi-version table without taking any locks, and writers lock the records
+     * they change like under record locking.  Deleted versions are freed by
+     * vacuum once no snapshot can see them.  This suits long reports over
+     * tables that are updated at the same time.
+     * <p>
+     * The stamps change the page layout, so this must be set before any
+     * tuple is stored in the file.
+     */
+    public void setMultiVersion(boolean multiVersion) {
+        this.multiVersion = multiVersion;
+    }
+
+    public boolean isMultiVersion() {
+        return multiVersion;
+    }
+
+    /** @return true if transactions change single tuples of pages they share */
+    boolean locksRecords() {
+        return recordLocking || multiVersion;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         try {
-            RandomAccessFile br = new RandomAccessFile(this.file, "r");
-            int offset = BufferPool.getPageSize() * pid.pageNumber();
-            br.seek(offset);
+            long offset = (long) BufferPool.getPageSize() * pid.pageNumber();
+            ByteBuffer region = pages.mapped(offset, BufferPool.getPageSize());
+            if (region != null) {
+                return new HeapPage((HeapPageId)pid, region);
+            }
             byte[] data = new byte[BufferPool.getPageSize()];
-            //System.out.println(Integer.toString((int)br.length()) + " " + offset + " " + BufferPool.getPageSize());
-            br.read(data, 0, BufferPool.getPageSize());
-            br.close();
+            pages.read(offset, data);
             return new HeapPage((HeapPageId)pid, data);
 
         } catch (Exception e) {
@@ -93,38 +163,37 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        PageId pid = page.getId();
-        //System.out.println("lala");
-        try {
-            RandomAccessFile br = new RandomAccessFile(this.file, "rw");
-            int offset = BufferPool.getPageSize() * pid.pageNumber();
-            br.seek(offset);
-            byte[] data = page.getPageData();
-            //System.out.println(Integer.toString((int)br.length()) + " " + offset + " " + BufferPool.getPageSize());
-            br.write(data, 0, Database.getBufferPool().getPageSize());
-            br.close();
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
+        long offset = (long) BufferPool.getPageSize() * page.getId().pageNumber();
+        pages.write(offset, page.getPageData());
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Returns the number of pages in this HeapFile, from the size cached when
+     * the file was opened and kept up to date by our own writes.  Once
+     * getFile() has handed the file out, subclasses and tools may append
+     * pages to it behind our back, so from then on the size is asked of the
+     * open channel each time.
      */
     public int numPages() {
         // some code goes here
         try {
-            RandomAccessFile br = new RandomAccessFile(this.file, "r");
-            long len = br.length();
-            return (int)len/BufferPool.getPageSize();
-        } catch (Exception e) {
+            if (!exposed) {
+                return cachedNumPages();
+            }
+            return (int) (pages.refreshSize() / BufferPool.getPageSize());
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return 0;
     }
 
+    /**
+     * Returns the number of pages as of the last write through this HeapFile.
+     */
+    private int cachedNumPages() throws IOException {
+        return (int) (pages.size() / BufferPool.getPageSize());
+    }
+
     Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HeapPageId pid, Permissions perm)
             throws DbException, TransactionAbortedException {
         if(dirtypages.containsKey(pid)) {
@@ -138,43 +207,75 @@ public class HeapFile implements DbFile {
             return p;
         }
     }
+    /** @return the first page at or after from not known to be full */
+    private int nextPageWithRoom(int from) {
+        synchronized (fullPages) {
+            return fullPages.nextClearBit(from);
+        }
+    }
+
+    private void setPageFull(int pageNo, boolean full) {
+        synchronized (fullPages) {
+            fullPages.set(pageNo, full);
+        }
+    }
+
+    /** Re-checks whether page is full, after its tuples were put back or undone. */
+    void updateFreeSpace(HeapPage page) {
+        setPageFull(page.getId().pageNumber(), page.getNumEmptySlots() == 0);
+    }
+
+    /** @return the first page at or after from that may hold deleted versions, or -1 */
+    private int nextDeadPage(int from) {
+        synchronized (deadPages) {
+            return deadPages.nextSetBit(from);
+        }
+    }
+
+    private void setPageDead(int pageNo, boolean dead) {
+        synchronized (deadPages) {
+            deadPages.set(pageNo, dead);
+        }
+    }
+
+    /** @return true if some page may hold deleted versions vacuum has not freed */
+    boolean hasDeadVersions() {
+        return nextDeadPage(0) != -1;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        HashMap<PageId, Page> dirtyPages = new HashMap<>();
-        //RecordId rid = t.getRecordId();
-        //PageId pid = rid.getPageId();
-        int cur = 0;
-        HeapPageId pid = new HeapPageId(this.getId(), cur);
-        while (true) {
-            Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (((HeapPage)page).getNumEmptySlots() > 0) {
-                ((HeapPage)page).insertTuple(t);
-                dirtyPages.put(pid, page);
-                break;
-            }
-            cur++;
-            if (cur < numPages()) {
-                pid = new HeapPageId(getId(), cur);
-            } else {
-               // System.out.println("gg" + cur);
-                pid = new HeapPageId(getId(), cur);
-                HeapPage newPage = new HeapPage(pid, HeapPage.createEmptyPageData());
-                writePage(newPage);
-                newPage = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                newPage.insertTuple(t);
-                dirtyPages.put(pid, newPage);
-                break;
+        if (locksRecords()) {
+            return insertRecord(tid, t);
+        }
+        ArrayList<Page> ret = new ArrayList<>();
+        BufferPool pool = Database.getBufferPool();
+        // skip straight to pages that may have room, per the free-space map
+        for (int cur = nextPageWithRoom(0); cur < cachedNumPages(); cur = nextPageWithRoom(cur + 1)) {
+            HeapPageId pid = new HeapPageId(getId(), cur);
+            // look without a lock first, so that pages found full are not
+            // locked exclusively and concurrent inserters do not queue on them
+            HeapPage page = (HeapPage) pool.getPage(null, pid, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0) {
+                page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+                if (page.getNumEmptySlots() > 0) {
+                    page.insertTuple(t);
+                    setPageFull(cur, page.getNumEmptySlots() == 0);
+                    ret.add(page);
+                    return ret;
+                }
             }
+            setPageFull(cur, true);
         }
 
-        ArrayList<Page> ret = new ArrayList<>();
-        ret.addAll(dirtyPages.values());
-        /*if (cur == 1) {
-            System.out.println(ret.get(0).getId().pageNumber());
-            System.out.println(ret.get(1).getId().pageNumber());
-        }*/
+        // every page is full: add an empty one at the end
+        long offset = pages.append(HeapPage.createEmptyPageData());
+        HeapPageId pid = new HeapPageId(getId(), (int) (offset / BufferPool.getPageSize()));
+        HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        newPage.insertTuple(t);
+        ret.add(newPage);
         return ret;
     }
 
@@ -182,17 +283,152 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        int cur = 0;
         HeapPageId pid = (HeapPageId)t.getRecordId().getPageId();
-        HashMap<PageId, Page> dirtryPages = new HashMap<>();
-        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        HeapPage page;
+        if (locksRecords()) {
+            BufferPool pool = Database.getBufferPool();
+            page = (HeapPage) pool.getPageForRecords(tid, pid, true);
+            pool.lockRecord(tid, t.getRecordId(), true);
+            if (multiVersion) {
+                pool.getVersionManager().beginWrite(tid);
+            }
+            LogFile log = Database.getLogFile();
+            synchronized (log) {
+                int slot = t.getRecordId().tupleno();
+                if (multiVersion) {
+                    // the version stays for older snapshots until vacuum frees it
+                    page.markDeleted(slot, tid);
+                } else {
+                    page.markGhost(slot);
+                }
+                try {
+                    log.logRecordChange(tid, page, slot, false);
+                } catch (IOException e) {
+                    throw new DbException("unable to log the delete of " + t.getRecordId());
+                }
+            }
+            if (multiVersion) {
+                setPageDead(pid.pageNumber(), true);
+                pool.getVersionManager().addToVacuum(this);
+            }
+            pool.addRecordChange(tid, t.getRecordId(), false);
+        } else {
+            page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            page.deleteTuple(t);
+            // under record locking the slot is only free once the delete
+            // commits, and the commit or vacuum clears the hint then
+            setPageFull(pid.pageNumber(), false);
+        }
         ArrayList<Page> ret = new ArrayList<>();
         ret.add(page);
         return ret;
         // not necessary for lab1
     }
 
+    /** insertTuple under record locking or multi-version concurrency control. */
+    private ArrayList<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        if (multiVersion) {
+            pool.getVersionManager().beginWrite(tid);
+        }
+        int cur = nextPageWithRoom(0);
+        while (true) {
+            HeapPageId pid;
+            if (cur < cachedNumPages()) {
+                pid = new HeapPageId(getId(), cur);
+            } else {
+                long offset = pages.append(HeapPage.createEmptyPageData());
+                pid = new HeapPageId(getId(), (int) (offset / BufferPool.getPageSize()));
+            }
+            HeapPage page = (HeapPage) pool.getPageForRecords(tid, pid, true);
+            if (claimSlot(tid, page, t)) {
+                setPageFull(pid.pageNumber(), page.getNumEmptySlots() == 0);
+                pool.addRecordChange(tid, t.getRecordId(), true);
+                ArrayList<Page> ret = new ArrayList<>();
+                ret.add(page);
+                return ret;
+            }
+            // full, or filled by other transactions since it was appended
+            setPageFull(pid.pageNumber(), true);
+            cur = nextPageWithRoom(pid.pageNumber() + 1);
+        }
+    }
+
+    /**
+     * Puts t in an empty slot of page that tid can lock at once, so no
+     * other transaction sees the tuple before tid commits, and logs it.
+     * @return false if there is no such slot
+     */
+    private boolean claimSlot(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException, IOException {
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            synchronized (page) {
+                for (int slot = page.nextEmptySlot(0); slot != -1; slot = page.nextEmptySlot(slot + 1)) {
+                    // a reader may still hold a lock on a slot freed by a committed delete
+                    if (Database.getBufferPool().tryLockRecord(tid, new RecordId(page.getId(), slot), true)) {
+                        page.insertTuple(t, slot, tid);
+                        log.logRecordChange(tid, page, slot, true);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Frees the slots of versions no snapshot can see any more, on the pages
+     * where versions were deleted.  Runs as a transaction of its own, which
+     * skips pages and records it cannot lock at once; vacuum looks at those
+     * again later.
+     * @return the number of slots freed
+     */
+    int vacuum(VersionManager versions) throws IOException {
+        BufferPool pool = Database.getBufferPool();
+        TransactionId vacuumer = new TransactionId();
+        int freed = 0;
+        try {
+            for (int pageNo = nextDeadPage(0); pageNo != -1; pageNo = nextDeadPage(pageNo + 1)) {
+                HeapPageId pid = new HeapPageId(getId(), pageNo);
+                HeapPage page = (HeapPage) pool.tryGetPageForRecords(vacuumer, pid, true);
+                if (page == null) {
+                    continue;
+                }
+                int freedHere = 0;
+                boolean left = false;
+                synchronized (page) {
+                    for (int slot = 0; slot < page.numSlots; slot++) {
+                        if (!page.isSlotUsed(slot) || page.deleter(slot) == VersionManager.NONE) {
+                            continue;
+                        }
+                        if (versions.isDead(page.deleter(slot))
+                                && pool.tryLockRecord(vacuumer, new RecordId(pid, slot), true)) {
+                            page.freeSlot(slot);
+                            freedHere++;
+                        } else {
+                            left = true;
+                        }
+                    }
+                }
+                if (freedHere > 0) {
+                    pool.cacheDirtyPage(vacuumer, page);
+                    setPageFull(pageNo, false);
+                    freed += freedHere;
+                }
+                if (!left) {
+                    setPageDead(pageNo, false);
+                }
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException("unable to vacuum " + file.getName(), e);
+        } finally {
+            pool.transactionComplete(vacuumer, true);
+        }
+        return freed;
+    }
+
     // see DbFile.java for javadocs
     public class HeapFileIterator implements DbFileIterator {
         int curPageNo;
@@ -201,6 +437,11 @@ public class HeapFile implements DbFile {
         int maxPages;
         TransactionId tid;
         Iterator<Tuple> itInPage;
+        ReadAhead readAhead;
+        VersionManager.Snapshot snapshot;
+        // drops tuples whose keyField it rules out, if not null
+        private int keyField;
+        private BloomFilter keyFilter;
         public int getcur() {
             return curPageNo;
         }
@@ -212,87 +453,82 @@ public class HeapFile implements DbFile {
             maxPages = numPages();
             itInPage = null;
             stats = false;
+            readAhead = new ReadAhead();
         }
-        public boolean hasNext() {
-            if (stats == false) {
-                return false;
+        /** @return the tuples on a page, locked for tid */
+        private Iterator<Tuple> tuplesOn(int pageNo) throws TransactionAbortedException, DbException {
+            readAhead.onHeapPage(tableId, pageNo, maxPages);
+            HeapPageId pid = new HeapPageId(tableId, pageNo);
+            if (multiVersion) {
+                // snapshot reads take no locks
+                BufferPool pool = Database.getBufferPool();
+                if (snapshot == null) {
+                    snapshot = pool.getVersionManager().snapshot(tid);
+                }
+                HeapPage page = (HeapPage) pool.getPage(null, pid, Permissions.READ_ONLY);
+                return page.visibleTuples(snapshot).iterator();
+            }
+            if (!recordLocking) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                return keyFilter == null ? page.iterator() : page.iterator(keyField, keyFilter);
+            }
+            BufferPool pool = Database.getBufferPool();
+            HeapPage page = (HeapPage) pool.getPageForRecords(tid, pid, false);
+            ArrayList<Tuple> locked = new ArrayList<Tuple>();
+            for (int slot = 0; slot < page.numSlots; slot++) {
+                // ghosts are locked too, to wait for their delete to commit or abort
+                if (!page.isSlotUsed(slot)) {
+                    continue;
+                }
+                RecordId rid = new RecordId(pid, slot);
+                if (!pool.tryLockRecord(tid, rid, false)) {
+                    pool.lockRecord(tid, rid, false);
+                    // the writer we waited for may have deleted the record,
+                    // and the page may have been evicted and read again
+                    page = (HeapPage) pool.getPageForRecords(tid, pid, false);
+                }
+                Tuple t = page.liveTuple(slot);
+                if (t != null) {
+                    locked.add(t);
+                }
             }
-            if (curPageNo >= maxPages) {
+            return locked.iterator();
+        }
+        /**
+         * Lets filter drop tuples whose field keyField it rules out before
+         * they are decoded, or stops filtering if filter is null.  Scans of
+         * snapshots and with record locks are not filtered.
+         */
+        void setKeyFilter(int keyField, BloomFilter filter) {
+            this.keyField = keyField;
+            keyFilter = filter;
+        }
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (stats == false) {
                 return false;
             }
-            //System.out.println(numPages());
             if (itInPage == null) {
-                try {
-                    PageId nextPageId = new HeapPageId(tableId, curPageNo);
-                    //System.out.println(tableId);
-                    //System.out.println(curPageNo);
-                    HeapPage tempPage = (HeapPage) Database.getBufferPool().getPage(tid, nextPageId, Permissions.READ_ONLY);
-                    /*if (tempPage == null) {
-                        System.out.println("oh no");
-                    }*/
-                    itInPage = tempPage.iterator();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                if (curPageNo >= maxPages) {
+                    return false;
                 }
+                itInPage = tuplesOn(curPageNo);
             }
-
-            if (itInPage.hasNext()) {
-                return true;
-            } else {
-                if (curPageNo < maxPages - 1) {
-                    try {
-                        int nextPageNo = curPageNo + 1;
-                        PageId nextPageId = new HeapPageId(HeapFile.this.getId(), nextPageNo);
-                        HeapPage tempPage = (HeapPage) Database.getBufferPool().getPage(tid, nextPageId, Permissions.READ_ONLY);
-                      /*  if (tempPage == null) {
-                            System.out.println("gg");
-                        }*/
-
-                        while (tempPage.iterator().hasNext() == false) {
-                            if (nextPageNo < maxPages - 1) {
-                                nextPageNo++;
-                                nextPageId = new HeapPageId(HeapFile.this.getId(), nextPageNo);
-                                tempPage = (HeapPage) Database.getBufferPool().getPage(tid, nextPageId, Permissions.READ_ONLY);
-                            } else {
-                                return false;
-                            }
-                        }
-                        return tempPage.iterator().hasNext();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                } else {
+            // skip empty pages
+            while (!itInPage.hasNext()) {
+                if (curPageNo >= maxPages - 1) {
                     return false;
                 }
+                curPageNo++;
+                itInPage = tuplesOn(curPageNo);
             }
-
-            return false;
+            return true;
         }
-        public Tuple next() throws NoSuchElementException{
+        public Tuple next() throws NoSuchElementException, DbException, TransactionAbortedException {
             if (hasNext()) {
-                if (itInPage.hasNext()) {
-                    return itInPage.next();
-                } else {
-                    int nextPageNo = curPageNo + 1;
-                    PageId nextPageId = new HeapPageId(HeapFile.this.getId(), nextPageNo);
-                    try {
-                        HeapPage tempPage = (HeapPage) Database.getBufferPool().getPage(tid, nextPageId, Permissions.READ_ONLY);
-                        while (tempPage.iterator().hasNext() == false) {
-                            nextPageNo++;
-                            nextPageId = new HeapPageId(HeapFile.this.getId(), nextPageNo);
-                            tempPage = (HeapPage) Database.getBufferPool().getPage(tid, nextPageId, Permissions.READ_ONLY);
-                        }
-                        curPageNo = nextPageNo;
-                        itInPage = tempPage.iterator();
-                        return itInPage.next();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
+                return itInPage.next();
             } else {
                 throw new NoSuchElementException("No next");
             }
-            return null;
         }
         public void close() {
             stats = false;
@@ -307,6 +543,7 @@ public class HeapFile implements DbFile {
             curPageNo = 0;
             //tableId = HeapFile.this.getId();
             itInPage = null;
+            readAhead.reset();
         }
     }
     public DbFileIterator iterator(TransactionId tid) {
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -16,12 +17,27 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // tuples that have been asked for or inserted; null for slots not decoded yet
     final Tuple tuples[];
+    // the page as read from disk; slots with no entry in tuples are decoded
+    // from here, so it is never modified
+    final byte[] data;
     final int numSlots;
+    // slots whose delete has not committed yet: still used on the page and
+    // on disk, but skipped by iterators.  Only set under record locking,
+    // whose page intention locks keep out the page readers using iterator()
+    private final BitSet ghosts = new BitSet();
+    // pages of multi-version tables stamp each slot with the transactions
+    // that created and deleted its version; null for other pages
+    private final long[] creators;
+    private final long[] deleters;
+    // bytes of creator and deleter stamps per slot of a multi-version page
+    private static final int STAMPS_SIZE = 16;
     Boolean dirty;
     TransactionId dirtier;
+    private volatile long lsn;
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock=new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -35,47 +51,73 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Pages of multi-version tables keep two 8-byte stamps per slot between
+     * the header and the tuples, which count towards the tuple size above.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a page of data in a buffer, e.g. a region of a
+     * memory-mapped file.  Only the header is parsed here; tuples, and the
+     * fields within them, are decoded when first asked for.  The page keeps
+     * its own copy of the bytes unless data wraps a whole page-sized array,
+     * which the page then takes over.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        boolean versioned = file instanceof HeapFile && ((HeapFile) file).isMultiVersion();
+        this.numSlots = getNumTuples(versioned);
         this.dirty = false;
         this.dirtier = null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-
-        //System.out.println(header.length);
-        for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-            //System.out.println(Byte.toString(dis.readByte()));
-
+        int pageSize = BufferPool.getPageSize();
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                && data.array().length == pageSize) {
+            this.data = data.array();
+        } else {
+            if (data.remaining() < pageSize) {
+                throw new IOException("short page: " + data.remaining() + " bytes");
+            }
+            this.data = new byte[pageSize];
+            data.get(this.data);
         }
 
+        // allocate and read the header slots of this page
+        header = Arrays.copyOf(this.data, getHeaderSize());
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        if (versioned) {
+            creators = new long[numSlots];
+            deleters = new long[numSlots];
+            ByteBuffer stamps = ByteBuffer.wrap(this.data, header.length, numSlots * STAMPS_SIZE);
+            for (int i = 0; i < numSlots; i++) {
+                creators[i] = stamps.getLong();
+                deleters[i] = stamps.getLong();
+            }
+        } else {
+            creators = null;
+            deleters = null;
         }
-        dis.close();
 
-        setBeforeImage();
+        // the page is exactly what was read, and data is never modified
+        synchronized(oldDataLock)
+        {
+            oldData = this.data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
      @return the number of tuples on this page
      */
-    private int getNumTuples() {
+    private int getNumTuples(boolean versioned) {
         // some code goes here
-        int tupleSize = td.getSize();
+        int tupleSize = td.getSize() + (versioned ? STAMPS_SIZE : 0);
         int tupleNumber = BufferPool.getPageSize() * 8 / (tupleSize * 8 + 1);
 
         return tupleNumber;
@@ -86,10 +128,8 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        int tupleSize = td.getSize();
-        int tupleNumber = BufferPool.getPageSize() * 8 / (tupleSize * 8 + 1);
         // some code goes here
-        int ret = (tupleNumber + 7) / 8;
+        int ret = (numSlots + 7) / 8;
         return ret;
 
     }
@@ -115,7 +155,7 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            oldData = getPageData();
         }
     }
 
@@ -129,36 +169,25 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the given slot in the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        int stamps = creators == null ? 0 : numSlots * STAMPS_SIZE;
+        return header.length + stamps + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Returns the tuple in a used slot, decoding it from the page data if
+     * this is the first time it is asked for.
+     */
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            // a used slot with no tuple still holds what was read from disk
+            t = new Tuple(td, data, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
-
         return t;
     }
 
@@ -173,65 +202,30 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
+    public synchronized byte[] getPageData() {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        System.arraycopy(header, 0, page, 0, header.length);
+        if (creators != null) {
+            ByteBuffer stamps = ByteBuffer.wrap(page, header.length, numSlots * STAMPS_SIZE);
+            for (int i = 0; i < numSlots; i++) {
+                stamps.putLong(creators[i]);
+                stamps.putLong(deleters[i]);
             }
         }
 
-        // create the tuples
+        // empty slots and the padding at the end stay zero
         for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (tuples[i] == null) {
+                // never decoded: still as on disk
+                System.arraycopy(data, slotOffset(i), page, slotOffset(i), td.getSize());
+            } else {
+                tuples[i].serialize(page, slotOffset(i));
             }
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -255,10 +249,10 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void  deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (getNumEmptySlots() == getNumTuples()) {
+        if (getNumEmptySlots() == numSlots) {
             throw new DbException("Already empty");
         }
         if (!this.pid.equals(t.getRecordId().getPageId())) {
@@ -268,10 +262,133 @@ public class HeapPage implements Page {
             throw new DbException("Tuple slot is already empty.");
         }
         markSlotUsed(t.getRecordId().tupleno(), false);
+        ghosts.clear(t.getRecordId().tupleno());
 
         // throw new DbException("No tuple to delete");
     }
 
+    /**
+     * Marks the tuple in a used slot as deleted by a transaction that has
+     * not committed yet.  The slot stays used until freeSlot.
+     * @throws DbException if the slot is empty or already deleted
+     */
+    synchronized void markGhost(int slot) throws DbException {
+        if (!isSlotUsed(slot) || ghosts.get(slot)) {
+            throw new DbException("Tuple slot is already empty.");
+        }
+        ghosts.set(slot);
+    }
+
+    /** Undoes markGhost or markDeleted, making the tuple visible again. */
+    synchronized void unmarkGhost(int slot) {
+        ghosts.clear(slot);
+        if (deleters != null) {
+            deleters[slot] = VersionManager.NONE;
+        }
+    }
+
+    /** Frees a slot, to purge a ghost whose delete committed or undo an insert. */
+    synchronized void freeSlot(int slot) {
+        ghosts.clear(slot);
+        markSlotUsed(slot, false);
+    }
+
+    /** @return the bytes of the tuple in a used slot, as written to disk */
+    synchronized byte[] tupleData(int slot) {
+        byte[] bytes = new byte[td.getSize()];
+        tuple(slot).serialize(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Redoes or undoes, as recovery does, the insert or delete of the tuple
+     * with the given bytes in slot by the transaction with id tid.  Either
+     * leaves the slot as it is right after or right before the change,
+     * whatever state it is in, so it may be applied again.
+     */
+    synchronized void applyRecordChange(int slot, boolean inserted, byte[] tuple, long tid,
+            boolean redo) {
+        ghosts.clear(slot);
+        if (inserted != redo) {
+            // an undone insert, or a redone delete
+            if (creators != null && !inserted) {
+                deleters[slot] = tid;
+            } else {
+                markSlotUsed(slot, false);
+            }
+            return;
+        }
+        if (creators != null && isSlotUsed(slot) && !inserted) {
+            // the version of an undone delete is still there
+            deleters[slot] = VersionManager.NONE;
+            return;
+        }
+        tuples[slot] = new Tuple(td, tuple, 0);
+        tuples[slot].setRecordId(new RecordId(pid, slot));
+        markSlotUsed(slot, true);
+        if (creators != null) {
+            creators[slot] = inserted ? tid : VersionManager.NONE;
+            deleters[slot] = VersionManager.NONE;
+        }
+    }
+
+    /** @return true if this page belongs to a multi-version table */
+    boolean isVersioned() {
+        return creators != null;
+    }
+
+    /**
+     * Stamps the version in a used slot of a multi-version page as deleted
+     * by tid, which must hold its exclusive record lock.  The slot stays
+     * used until vacuum frees it.
+     * @throws DbException if the slot is empty, or tid already deleted it
+     * @throws TransactionAbortedException if another transaction deleted
+     *   the version first
+     */
+    synchronized void markDeleted(int slot, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        if (!isSlotUsed(slot) || deleters[slot] == tid.getId()) {
+            throw new DbException("Tuple slot is already empty.");
+        }
+        if (deleters[slot] != VersionManager.NONE) {
+            throw new TransactionAbortedException();
+        }
+        deleters[slot] = tid.getId();
+    }
+
+    /** @return the transaction that deleted the version in slot, or VersionManager.NONE */
+    synchronized long deleter(int slot) {
+        return deleters[slot];
+    }
+
+    /** @return the tuples of this multi-version page visible in snapshot */
+    synchronized ArrayList<Tuple> visibleTuples(VersionManager.Snapshot snapshot) {
+        ArrayList<Tuple> visible = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i) && snapshot.sees(creators[i], deleters[i])) {
+                visible.add(tuple(i));
+            }
+        }
+        return visible;
+    }
+
+    /** @return the first empty slot at or after from, or -1 if there is none */
+    synchronized int nextEmptySlot(int from) {
+        for (int i = from; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the tuple in a slot if it is used and not a ghost, or null.
+     */
+    synchronized Tuple liveTuple(int slot) {
+        return isSlotUsed(slot) && !ghosts.get(slot) ? tuple(slot) : null;
+    }
+
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
      *  that it is now stored on this page.
@@ -279,7 +396,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if (getNumEmptySlots() == 0) {
@@ -290,11 +407,34 @@ public class HeapPage implements Page {
                 tuples[i] = t;
                 tuples[i].setRecordId(new RecordId(getId(), i));
                 markSlotUsed(i, true);
+                if (creators != null) {
+                    // a version no transaction is answerable for
+                    creators[i] = VersionManager.NONE;
+                    deleters[i] = VersionManager.NONE;
+                }
                 break;
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the given empty slot, on behalf of tid,
+     * which must hold its exclusive record lock.
+     * @throws DbException if the slot is in use
+     */
+    synchronized void insertTuple(Tuple t, int slot, TransactionId tid) throws DbException {
+        if (isSlotUsed(slot)) {
+            throw new DbException("Tuple slot is in use.");
+        }
+        tuples[slot] = t;
+        t.setRecordId(new RecordId(pid, slot));
+        markSlotUsed(slot, true);
+        if (creators != null) {
+            creators[slot] = tid.getId();
+            deleters[slot] = VersionManager.NONE;
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -318,12 +458,20 @@ public class HeapPage implements Page {
         return dirtier;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
-        int ret = getNumTuples();
+        int ret = numSlots;
         for (int i = 0; i < header.length; i++) {
             int tmp = header[i];
             if (tmp < 0) {
@@ -370,30 +518,43 @@ public class HeapPage implements Page {
      */
     public class TupleIterator<E> implements Iterator<E>{
         int curPos;
+        // the slot hasNext found, or -1 if it has not looked since next
+        int nextPos;
+        // drops tuples whose keyField it rules out, if not null
+        private final int keyField;
+        private final BloomFilter filter;
 
         public TupleIterator() {
+            this(0, null);
+        }
+
+        TupleIterator(int keyField, BloomFilter filter) {
             curPos = -1;
+            nextPos = -1;
+            this.keyField = keyField;
+            this.filter = filter;
         }
         public boolean hasNext() {
-            int tempPos = curPos;
-            for (tempPos++; tempPos < HeapPage.this.tuples.length; tempPos++) {
-                if (isSlotUsed(tempPos)) {
-                    return true;
+            if (nextPos < 0) {
+                for (nextPos = curPos + 1; nextPos < HeapPage.this.tuples.length; nextPos++) {
+                    if (isSlotUsed(nextPos) && !ghosts.get(nextPos)
+                            && (filter == null || mightMatch(nextPos, keyField, filter))) {
+                        break;
+                    }
                 }
             }
-            return false;
+            return nextPos < HeapPage.this.tuples.length;
         }
         public E next() {
-            if (hasNext()) {
-                for (curPos++; curPos < HeapPage.this.tuples.length; curPos++) {
-                    if (isSlotUsed(curPos)) {
-                        return (E) HeapPage.this.tuples[curPos];
-                    }
+            while (hasNext()) {
+                curPos = nextPos;
+                nextPos = -1;
+                // the slot may have been emptied since hasNext
+                if (isSlotUsed(curPos) && !ghosts.get(curPos)) {
+                    return (E) HeapPage.this.tuple(curPos);
                 }
-            } else {
-                throw new NoSuchElementException("No next");
             }
-            return null;
+            throw new NoSuchElementException("No next");
         }
         public void remove() throws UnsupportedOperationException{
             throw new UnsupportedOperationException("No remove operation");
@@ -406,5 +567,35 @@ public class HeapPage implements Page {
         return ret;
     }
 
+    /**
+     * @return an iterator over the tuples on this page whose field keyField
+     *         filter does not rule out; the others are never decoded
+     */
+    Iterator<Tuple> iterator(int keyField, BloomFilter filter) {
+        return new TupleIterator<Tuple>(keyField, filter);
+    }
+
+    /**
+     * @return false if filter rules out the key of the tuple in a used slot,
+     *         read from the page data if the tuple was never decoded
+     */
+    private boolean mightMatch(int slotId, int keyField, BloomFilter filter) {
+        Tuple t = tuples[slotId];
+        if (t != null) {
+            return filter.mightContain(t.getField(keyField).hashCode());
+        }
+        int offset = slotOffset(slotId);
+        for (int i = 0; i < keyField; i++) {
+            offset += td.getFieldType(i).getLen();
+        }
+        Type type = td.getFieldType(keyField);
+        if (type == Type.INT_TYPE) {
+            // the hash code of an IntField is its value
+            return filter.mightContain(((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                    | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff));
+        }
+        return filter.mightContain(type.parse(data, offset).hashCode());
+    }
+
 }
 
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
@@ -83,8 +85,8 @@ public class Insert extends Operator {
             try {
                 Database.getBufferPool().insertTuple(tid, tableId, tuple);
                 count++;
-            } catch (Exception e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                throw new DbException("insert failed: " + e.getMessage());
             }
         }
         Tuple tuple = new Tuple(getTupleDesc());
@@ -40,6 +40,13 @@ public class IntField implements Field {
         dos.writeInt(value);
     }
 
+    public void serialize(byte[] buf, int offset) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
     /**
      * Compare the specified field to the value of this Field.
      * Return semantics are as specified by Field.compare
@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Numbers distinct int keys 0, 1, 2, ... in the order they are added, so
+ * that operators can keep what they know about each key in flat arrays
+ * indexed by its number instead of maps of boxed keys.
+ * <p>
+ * It is an open-addressing hash table with linear probing: each slot holds
+ * a key next to its number, so a lookup usually reads one cache line and
+ * allocates nothing.
+ */
+class IntHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // key and number plus one of each slot, side by side; 0 marks an empty slot
+    private int[] slots;
+    private int mask;
+    // the keys, by number
+    private int[] keys;
+    private int size;
+
+    /** Creates a table with room for about expected keys before it grows. */
+    IntHashTable(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity * 2];
+        mask = capacity - 1;
+        keys = new int[Math.max(expected, 8)];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the number of key, or -1 if it was never added */
+    int find(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int n = slots[2 * i + 1];
+            if (n == 0) {
+                return -1;
+            }
+            if (slots[2 * i] == key) {
+                return n - 1;
+            }
+        }
+    }
+
+    /** @return the number of key, which is size() - 1 if it is new */
+    int add(int key) {
+        int i = hash(key) & mask;
+        for (; slots[2 * i + 1] != 0; i = (i + 1) & mask) {
+            if (slots[2 * i] == key) {
+                return slots[2 * i + 1] - 1;
+            }
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size] = key;
+        slots[2 * i] = key;
+        slots[2 * i + 1] = ++size;
+        if (size * 2 > mask + 1) {
+            grow();
+        }
+        return size - 1;
+    }
+
+    private void grow() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        mask = (mask << 1) | 1;
+        for (int j = 0; j < old.length; j += 2) {
+            if (old[j + 1] != 0) {
+                int i = hash(old[j]) & mask;
+                while (slots[2 * i + 1] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[2 * i] = old[j];
+                slots[2 * i + 1] = old[j + 1];
+            }
+        }
+    }
+
+    /** @return the number of keys added */
+    int size() {
+        return size;
+    }
+
+    /** @return the bytes its arrays take */
+    long sizeBytes() {
+        return 4L * (slots.length + keys.length);
+    }
+
+    /** @return the key numbered n */
+    int key(int n) {
+        return keys[n];
+    }
+}
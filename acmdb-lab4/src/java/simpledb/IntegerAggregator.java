@@ -1,10 +1,17 @@
 package simpledb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered in the order they are first seen, and the aggregate
+ * of each is kept in flat arrays indexed by its number.  INT group-by
+ * values are numbered with an {@link IntHashTable}, so they are never
+ * boxed.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -27,10 +34,13 @@ public class IntegerAggregator implements Aggregator {
 
     int gbfield, afield;
     Type gbfieldtype;
-    Field gb;
     Op aop;
-    HashMap<Field, Integer> res;
-    HashMap<Field, Integer> gbCount;
+    // the numbers of the groups, by INT group-by value or by any other
+    IntHashTable intGroups;
+    HashMap<Field, Integer> groups;
+    // the aggregate value and tuple count of each group, by number
+    int[] res = new int[16];
+    int[] gbCount = new int[16];
     String gbname;
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
@@ -38,8 +48,11 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.aop = what;
-        res = new HashMap<>();
-        gbCount = new HashMap<>();
+        if (gbfieldtype == Type.INT_TYPE) {
+            intGroups = new IntHashTable(16);
+        } else {
+            groups = new HashMap<>();
+        }
         gbname = null;
     }
 
@@ -52,34 +65,41 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (gbfield == Aggregator.NO_GROUPING) {
-            gb = null;
-        } else {
-            gb = tup.getField(gbfield);
+        int gb = 0;
+        if (gbfield != Aggregator.NO_GROUPING) {
+            Field f = tup.getField(gbfield);
             if (gbname == null) {
                 gbname = tup.getTupleDesc().getFieldName(gbfield);
             }
+            if (intGroups != null) {
+                gb = intGroups.add(((IntField) f).getValue());
+            } else {
+                Integer known = groups.get(f);
+                gb = known == null ? groups.size() : known;
+                if (known == null) {
+                    groups.put(f, gb);
+                }
+            }
+        }
+        if (gb == res.length) {
+            res = Arrays.copyOf(res, gb * 2);
+            gbCount = Arrays.copyOf(gbCount, gb * 2);
         }
         int val = ((IntField)tup.getField(afield)).getValue();
-        if (!res.containsKey(gb)) {
-            res.put(gb, val);
+        if (gbCount[gb] == 0) {
+            res[gb] = val;
         } else {
             if (aop == Op.AVG || aop == Op.SUM) {
-                res.put(gb, val + res.get(gb));
+                res[gb] += val;
             }
             if (aop == Op.MAX)  {
-                res.put(gb, Math.max(val, res.get(gb)));
+                res[gb] = Math.max(val, res[gb]);
             }
             if (aop == Op.MIN) {
-                res.put(gb, Math.min(val, res.get(gb)));
+                res[gb] = Math.min(val, res[gb]);
             }
         }
-
-        if (gbCount.containsKey(gb)) {
-            gbCount.put(gb, gbCount.get(gb) + 1);
-        } else {
-            gbCount.put(gb, 1);
-        }
+        gbCount[gb]++;
 
     }
 
@@ -101,15 +121,7 @@ public class IntegerAggregator implements Aggregator {
             TupleDesc td = new TupleDesc(tp, fn);
             Tuple t = new Tuple(td);
 
-            if (aop == Op.AVG) {
-                t.setField(0, new IntField(res.get(null) / gbCount.get(null)));
-            }
-            if (aop == Op.MAX || aop == Op.MIN || aop == Op.SUM) {
-                t.setField(0, new IntField(res.get(null)));
-            }
-            if (aop == Op.COUNT) {
-                t.setField(0, new IntField(gbCount.get(null)));
-            }
+            t.setField(0, new IntField(aggregate(0)));
             ArrayList<Tuple> a = new ArrayList<>();
             a.add(t);
             return new TupleIterator(td, a);
@@ -122,22 +134,34 @@ public class IntegerAggregator implements Aggregator {
             fn[1] = aop.toString();
             TupleDesc td = new TupleDesc(tp, fn);
             ArrayList<Tuple> a = new ArrayList<>();
-            for (Field f : gbCount.keySet()) {
-                Tuple t = new Tuple(td);
-                t.setField(0, f);
-                if (aop == Op.AVG) {
-                    t.setField(1, new IntField(res.get(f) / gbCount.get(f)));
-                }
-                if (aop == Op.MAX || aop == Op.MIN || aop == Op.SUM) {
-                    t.setField(1, new IntField(res.get(f)));
+            if (intGroups != null) {
+                for (int gb = 0; gb < intGroups.size(); gb++) {
+                    Tuple t = new Tuple(td);
+                    t.setField(0, new IntField(intGroups.key(gb)));
+                    t.setField(1, new IntField(aggregate(gb)));
+                    a.add(t);
                 }
-                if (aop == Op.COUNT) {
-                    t.setField(1, new IntField(gbCount.get(f)));
+            } else {
+                for (Map.Entry<Field, Integer> e : groups.entrySet()) {
+                    Tuple t = new Tuple(td);
+                    t.setField(0, e.getKey());
+                    t.setField(1, new IntField(aggregate(e.getValue())));
+                    a.add(t);
                 }
-                a.add(t);
             }
             return new TupleIterator(td, a);
         }
     }
 
+    /** @return the aggregate value of group gb */
+    private int aggregate(int gb) {
+        if (aop == Op.AVG) {
+            return res[gb] / gbCount[gb];
+        }
+        if (aop == Op.COUNT) {
+            return gbCount[gb];
+        }
+        return res[gb];
+    }
+
 }
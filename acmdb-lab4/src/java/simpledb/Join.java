@@ -4,11 +4,19 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: it reads as many outer tuples as fit in
+ * its memory budget, then scans the inner child once for the whole block,
+ * so the inner child is scanned once per block instead of once per outer
+ * tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default memory budget for a block of outer tuples, in bytes. */
+    public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -23,14 +31,29 @@ public class Join extends Operator {
     JoinPredicate pred;
     DbIterator c1, c2;
     Tuple cur1, cur2;
+    private final int blockBytes;
+    // the current block of outer tuples, and the next one to match against cur2
+    private final ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private int blockPos;
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_BYTES);
+    }
+
+    /**
+     * Constructor that sets the memory budget for blocks of outer tuples.
+     *
+     * @param blockBytes
+     *            The number of bytes of outer tuples to join per scan of the
+     *            inner relation; at least one tuple is read
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockBytes) {
         // some code goes here
         pred = p;
         c1 = child1;
         c2 = child2;
         cur1 = null;
         cur2 = null;
-
+        this.blockBytes = blockBytes;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -90,6 +113,7 @@ public class Join extends Operator {
         super.open();
         cur1 = null;
         cur2 = null;
+        block.clear();
         c1.open();
         c2.open();
     }
@@ -99,6 +123,7 @@ public class Join extends Operator {
         super.close();
         cur1 = null;
         cur2 = null;
+        block.clear();
         c1.close();
         c2.close();
     }
@@ -107,6 +132,7 @@ public class Join extends Operator {
         // some code goes here
         cur1 = null;
         cur2 = null;
+        block.clear();
         c1.rewind();
         c2.rewind();
     }
@@ -131,46 +157,59 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (cur1 == null) {
-            cur1 = c1.next();
-        }
-        //System.out.println(c1.hasNext() + " " + c2.hasNext());
-        if (c1.hasNext() == false && c2.hasNext() == false) {
-            return null;
-        }
-
-        while (c1.hasNext() || c2.hasNext()) {
-            if (c2.hasNext()) {
-                cur2 = c2.next();
-                if (pred.filter(cur1, cur2)) {
-                    break;
+        while (true) {
+            if (cur2 != null) {
+                while (blockPos < block.size()) {
+                    cur1 = block.get(blockPos++);
+                    if (pred.filter(cur1, cur2)) {
+                        return merge(cur1, cur2);
+                    }
                 }
-            } else {
-                c2.rewind();
-                cur1 = c1.next();
+                cur2 = null;
+            }
+            if (block.isEmpty()) {
+                if (!readBlock()) {
+                    return null;
+                }
+            } else if (c2.hasNext()) {
                 cur2 = c2.next();
-                if (pred.filter(cur1, cur2)) {
-                    break;
+                blockPos = 0;
+            } else {
+                // the inner relation is done with this block
+                block.clear();
+                if (!readBlock()) {
+                    return null;
                 }
+                c2.rewind();
             }
         }
+    }
 
-        if (cur1 != null && cur2 != null && pred.filter(cur1, cur2)) {
-            int len = c1.getTupleDesc().numFields() + c2.getTupleDesc().numFields();
-            int len1 = c1.getTupleDesc().numFields();
-            TupleDesc td = getTupleDesc();
-
-            Tuple ret = new Tuple(td);
-            for (int i = 0; i < len; i++) {
-                if (i < len1) {
-                    ret.setField(i, cur1.getField(i));
-                } else {
-                    ret.setField(i, cur2.getField(i-len1));
-                }
+    /**
+     * Reads the next block of outer tuples, as many as fit in the memory
+     * budget.
+     * @return false if the outer relation has no tuples left
+     */
+    private boolean readBlock() throws TransactionAbortedException, DbException {
+        int capacity = Math.max(1, blockBytes / c1.getTupleDesc().getSize());
+        while (block.size() < capacity && c1.hasNext()) {
+            block.add(c1.next());
+        }
+        return !block.isEmpty();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int len1 = c1.getTupleDesc().numFields();
+        TupleDesc td = getTupleDesc();
+        Tuple ret = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (i < len1) {
+                ret.setField(i, t1.getField(i));
+            } else {
+                ret.setField(i, t2.getField(i-len1));
             }
-            return ret;
         }
-        return null;
+        return ret;
     }
 
     @Override
@@ -188,6 +227,8 @@ public class Join extends Operator {
         c1 = children[0];
         c2 = children[1];
         cur1 = null;
+        cur2 = null;
+        block.clear();
     }
 
 }
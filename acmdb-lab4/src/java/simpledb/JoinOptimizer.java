@@ -44,6 +44,17 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, -1, -1);
+    }
+
+    /**
+     * Like instantiateJoin above, given estimates of the cardinalities of
+     * the children, or -1 where there are none.  Without them, range joins
+     * are never merged, as a SortMergeJoin keeps its children in memory.
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, int card1, int card2)
+            throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -68,7 +79,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (mergeJoin(lj.p, card1, card2, SortMergeJoin.isSortedOn(plan1, t1id),
+                SortMergeJoin.isSortedOn(plan2, t2id))) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -102,6 +118,20 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, false, false);
+    }
+
+    /**
+     * Like estimateJoinCost above, for children that may already return
+     * their tuples in ascending order of the join fields.
+     *
+     * @param sorted1
+     *            true if the left-hand side is sorted on the join field
+     * @param sorted2
+     *            true if the right-hand side is sorted on the join field
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
@@ -112,10 +142,43 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            if (mergeJoin(j.p, card1, card2, sorted1, sorted2)) {
+                // as instantiateJoin would: both children are read once,
+                // and sorted unless they are already, and only matching
+                // pairs are visited
+                return cost1 + cost2 + card1 + card2
+                        + (sorted1 ? 0 : sortCost(card1)) + (sorted2 ? 0 : sortCost(card2))
+                        + estimateJoinCardinality(j, card1, card2, false, false, null);
+            }
             return card1 * card2 + cost1 + card1 * cost2;
         }
     }
 
+    /**
+     * @return true if a join on op should be a SortMergeJoin: on an
+     *         equality if both children are sorted on the join fields, so it
+     *         only keeps the inner tuples of one key in memory; on a range if
+     *         the tuples it keeps, the inner ones and the outer ones it has
+     *         to sort, are estimated to fit in
+     *         SortMergeJoin.DEFAULT_MAX_TUPLES
+     */
+    private static boolean mergeJoin(Predicate.Op op, int card1, int card2,
+            boolean sorted1, boolean sorted2) {
+        if (!SortMergeJoin.supports(op)) {
+            return false;
+        }
+        if (op == Predicate.Op.EQUALS) {
+            return sorted1 && sorted2;
+        }
+        return card1 >= 0 && card2 >= 0
+                && (long) card2 + (sorted1 ? 0 : card1) <= SortMergeJoin.DEFAULT_MAX_TUPLES;
+    }
+
+    /** @return the cost of sorting card tuples in memory */
+    private static double sortCost(int card) {
+        return card * (Math.log(Math.max(card, 2)) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -256,7 +319,7 @@ public class JoinOptimizer {
                     temp.remove(j);
                     CostCard costCard = computeCostAndCardOfSubplan(stats, filterSelectivities, j, temp, bestPlan.getCost(sp), bestPlan);
                     if (costCard != null && costCard.cost < bestPlan.getCost(sp))
-                        bestPlan.addPlan(sp, costCard.cost, costCard.card, costCard.plan);
+                        bestPlan.addPlan(sp, costCard.cost, costCard.card, costCard.plan, costCard.sortedOn);
                 }
             }
         }
@@ -327,6 +390,9 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // base tables are scanned in no known order; a subplan is sorted if
+        // its last join is a SortMergeJoin, as instantiateJoin will see
+        boolean sorted1 = false, sorted2 = false;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -362,6 +428,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                sorted1 = j.f1QuantifiedName.equals(pc.getSortedOn(news));
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -378,6 +445,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                sorted2 = j.f2QuantifiedName.equals(pc.getSortedOn(news));
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -391,17 +459,22 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, sorted1, sorted2);
+        boolean swapped = false;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, sorted2, sorted1);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            swapped = true;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            tmp = sorted2;
+            sorted2 = sorted1;
+            sorted1 = tmp;
         }
         if (cost1 >= bestCostSoFar)
             return null;
@@ -413,6 +486,12 @@ public class JoinOptimizer {
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
         cc.plan.addElement(j); // prevbest is left -- add new join to end
+        if (!(j instanceof LogicalSubplanJoinNode)
+                && mergeJoin(j.p, swapped ? t2card : t1card, swapped ? t1card : t2card,
+                        sorted1, sorted2)) {
+            // a SortMergeJoin returns its tuples in the order of its left field
+            cc.sortedOn = j.f1QuantifiedName;
+        }
         return cc;
     }
 
@@ -0,0 +1,440 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hierarchical locks for strict two-phase locking on tables, pages and
+ * records.
+ * <p>
+ * A lockable resource is a table (keyed by {@link #tableKey}), a PageId or a
+ * RecordId.  Besides shared and exclusive locks there are the intention
+ * modes IS, IX and SIX, which a transaction takes on a table or page before
+ * locking finer-grained resources inside it, so that a coarse lock conflicts
+ * with the fine locks under it.  A transaction asking for a mode on a
+ * resource it already holds gets the weakest mode covering both, e.g. S and
+ * IX become SIX.
+ * <p>
+ * Each resource has its own lock object, found through a concurrent map, and
+ * waiters block on that object only; there is no monitor shared by all
+ * resources.  Each transaction also has a map from the resources it holds to
+ * their modes.  Requests already covered by it are answered without
+ * touching the lock object, and it is used to release everything at once.
+ * <p>
+ * Deadlocks are found with a wait-for graph.  A transaction that has to
+ * wait records edges to the transactions holding conflicting modes, and the
+ * graph is searched for a cycle through it whenever those edges change.
+ * The youngest transaction in a cycle is aborted: if that is the requester
+ * it gets a TransactionAbortedException at once, otherwise the victim is
+ * woken and gets one from its own wait.  Uncontended requests never touch
+ * the graph.
+ */
+class LockManager {
+
+    /** Lock modes, from weakest to strongest. */
+    enum Mode {
+        IS, IX, S, SIX, X;
+
+        // COMPATIBLE[a][b]: two transactions may hold a and b at once
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+        };
+
+        boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode grants everything other does */
+        boolean covers(Mode other) {
+            if (this == other || this == X) {
+                return true;
+            }
+            switch (this) {
+            case SIX:
+                return other != X;
+            case IX:
+            case S:
+                return other == IS;
+            default:
+                return false;
+            }
+        }
+
+        /** @return the weakest mode covering both this and other */
+        Mode combine(Mode other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // the only pair where neither covers the other is S and IX
+            return SIX;
+        }
+    }
+
+    /** @return the resource standing for the whole table with the given id */
+    static Object tableKey(int tableId) {
+        return Integer.valueOf(tableId);
+    }
+
+    private static class ResourceLock {
+        // all fields are protected by the ResourceLock's monitor
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>(4);
+        int waiters;
+        // set once the lock is unused and dropped from the table
+        boolean retired;
+
+        /** @return the mode tid would hold after being granted mode */
+        Mode wanted(TransactionId tid, Mode mode) {
+            Mode held = holders.get(tid);
+            return held == null ? mode : held.combine(mode);
+        }
+
+        /** Grants mode to tid if it is compatible with the other holders. */
+        boolean tryGrant(TransactionId tid, Mode mode) {
+            Mode wanted = wanted(tid, mode);
+            if (!blockers(tid, wanted).isEmpty()) {
+                return false;
+            }
+            holders.put(tid, wanted);
+            return true;
+        }
+
+        /** @return the transactions other than tid holding modes that conflict with wanted */
+        HashSet<TransactionId> blockers(TransactionId tid, Mode wanted) {
+            HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !wanted.compatibleWith(e.getValue())) {
+                    blockers.add(e.getKey());
+                }
+            }
+            return blockers;
+        }
+    }
+
+    /**
+     * Who waits for whom.  Only transactions that are blocked have edges.
+     * Protected by its own monitor, which is never held while a
+     * ResourceLock monitor is taken.
+     */
+    private static class WaitsForGraph {
+        private final HashMap<TransactionId, HashSet<TransactionId>> edges =
+                new HashMap<TransactionId, HashSet<TransactionId>>();
+        // the lock each blocked transaction waits on, to wake it if chosen
+        private final HashMap<TransactionId, ResourceLock> waitingOn =
+                new HashMap<TransactionId, ResourceLock>();
+        private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+
+        /**
+         * Records that tid waits on lock for blockers.
+         * @return true if tid's edges changed
+         */
+        synchronized boolean setEdges(TransactionId tid, HashSet<TransactionId> blockers,
+                ResourceLock lock) {
+            waitingOn.put(tid, lock);
+            return !blockers.equals(edges.put(tid, blockers));
+        }
+
+        synchronized void remove(TransactionId tid) {
+            edges.remove(tid);
+            waitingOn.remove(tid);
+            victims.remove(tid);
+        }
+
+        synchronized boolean isVictim(TransactionId tid) {
+            return victims.contains(tid);
+        }
+
+        /**
+         * Looks for a cycle through tid and picks the youngest transaction
+         * in it as the victim.
+         * @return the victim, or null if there is no cycle
+         */
+        synchronized TransactionId findVictim(TransactionId tid) {
+            ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+            if (!findPath(tid, tid, path, new HashSet<TransactionId>())) {
+                return null;
+            }
+            TransactionId victim = tid;
+            for (TransactionId t : path) {
+                if (t.getId() > victim.getId()) {
+                    victim = t;
+                }
+            }
+            return victim;
+        }
+
+        /** Depth-first search for a path from 'from' back to target. */
+        private boolean findPath(TransactionId from, TransactionId target,
+                ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+            HashSet<TransactionId> next = edges.get(from);
+            if (next == null) {
+                return false;
+            }
+            for (TransactionId t : next) {
+                if (t.equals(target)) {
+                    return true;
+                }
+                if (visited.add(t)) {
+                    path.add(t);
+                    if (findPath(t, target, path, visited)) {
+                        return true;
+                    }
+                    path.remove(path.size() - 1);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Marks tid as a deadlock victim.
+         * @return the lock it waits on, to be notified, or null
+         */
+        synchronized ResourceLock doom(TransactionId tid) {
+            ResourceLock lock = waitingOn.get(tid);
+            if (lock != null) {
+                victims.add(tid);
+            }
+            return lock;
+        }
+    }
+
+    private final ConcurrentHashMap<Object, ResourceLock> locks =
+            new ConcurrentHashMap<Object, ResourceLock>();
+    // the resources each transaction holds, and in which mode
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, Mode>> lockSets =
+            new ConcurrentHashMap<TransactionId, ConcurrentHashMap<Object, Mode>>();
+    private final WaitsForGraph waitsFor = new WaitsForGraph();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /** @return the number of deadlocks found, each of which aborted one transaction */
+    long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    /** @return the total time requests have spent blocked on locks, in milliseconds */
+    long getWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /**
+     * Acquires a lock on resource in the given mode for tid, waiting while
+     * another transaction holds a conflicting mode.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock and tid
+     *   was chosen to abort, or the thread was interrupted while waiting
+     */
+    void acquire(TransactionId tid, Object resource, Mode mode)
+            throws TransactionAbortedException {
+        Mode held = modeHeld(tid, resource);
+        if (held != null && held.covers(mode)) {
+            return;
+        }
+        long waitStart = 0;
+        try {
+            while (true) {
+                ResourceLock lock = lockFor(resource);
+                synchronized (lock) {
+                    if (lock.retired) {
+                        // released and dropped since we looked it up
+                        continue;
+                    }
+                    int holders = lock.holders.size();
+                    if (lock.tryGrant(tid, mode)) {
+                        if (lock.waiters > 0 && lock.holders.size() > holders) {
+                            // waiters may now also wait for us; let them update their edges
+                            lock.notifyAll();
+                        }
+                        lockSet(tid).put(resource, lock.holders.get(tid));
+                        break;
+                    }
+                    if (waitStart == 0) {
+                        waitStart = System.nanoTime();
+                    }
+                    if (waitsFor.isVictim(tid)) {
+                        throw deadlock();
+                    }
+                    HashSet<TransactionId> blockers = lock.blockers(tid, lock.wanted(tid, mode));
+                    if (!waitsFor.setEdges(tid, blockers, lock)) {
+                        // nothing new to check; sleep until the lock changes
+                        lock.waiters++;
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransactionAbortedException();
+                        } finally {
+                            lock.waiters--;
+                        }
+                        continue;
+                    }
+                }
+                // our edges changed: search for a cycle without holding the resource lock
+                TransactionId victim = waitsFor.findVictim(tid);
+                if (victim == null) {
+                    continue;
+                }
+                if (victim.equals(tid)) {
+                    throw deadlock();
+                }
+                ResourceLock victimLock = waitsFor.doom(victim);
+                if (victimLock != null) {
+                    synchronized (victimLock) {
+                        victimLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (waitStart != 0) {
+                waitsFor.remove(tid);
+                waitNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+        }
+    }
+
+    /**
+     * Acquires a lock on resource in the given mode for tid if that can be
+     * done without waiting.
+     * @return true if tid now holds the lock
+     */
+    boolean tryAcquire(TransactionId tid, Object resource, Mode mode) {
+        Mode held = modeHeld(tid, resource);
+        if (held != null && held.covers(mode)) {
+            return true;
+        }
+        while (true) {
+            ResourceLock lock = lockFor(resource);
+            synchronized (lock) {
+                if (lock.retired) {
+                    continue;
+                }
+                if (!lock.tryGrant(tid, mode)) {
+                    return false;
+                }
+                if (lock.waiters > 0) {
+                    lock.notifyAll();
+                }
+                lockSet(tid).put(resource, lock.holders.get(tid));
+                return true;
+            }
+        }
+    }
+
+    private TransactionAbortedException deadlock() {
+        deadlocks.incrementAndGet();
+        TransactionAbortedException e = new TransactionAbortedException();
+        e.initCause(new DeadlockException());
+        return e;
+    }
+
+    /** Releases whatever lock tid holds on resource. */
+    void release(TransactionId tid, Object resource) {
+        Map<Object, Mode> held = lockSets.get(tid);
+        if (held != null) {
+            held.remove(resource);
+        }
+        unlock(tid, resource);
+    }
+
+    /** Releases every lock held by tid. */
+    void releaseAll(TransactionId tid) {
+        Map<Object, Mode> held = lockSets.remove(tid);
+        if (held != null) {
+            for (Object resource : held.keySet()) {
+                unlock(tid, resource);
+            }
+        }
+    }
+
+    boolean holdsLock(TransactionId tid, Object resource) {
+        return modeHeld(tid, resource) != null;
+    }
+
+    /** @return the mode tid holds on resource, or null if it holds none */
+    Mode modeHeld(TransactionId tid, Object resource) {
+        Map<Object, Mode> held = lockSets.get(tid);
+        return held == null ? null : held.get(resource);
+    }
+
+    /**
+     * @return true if some transaction holds IX or SIX on resource, i.e.
+     *   may be changing things inside it alongside other transactions
+     */
+    boolean hasIntentionWriters(Object resource) {
+        ResourceLock lock = locks.get(resource);
+        if (lock == null) {
+            return false;
+        }
+        synchronized (lock) {
+            return lock.holders.containsValue(Mode.IX) || lock.holders.containsValue(Mode.SIX);
+        }
+    }
+
+    /** @return a snapshot of the pages tid holds locks on */
+    ArrayList<PageId> pagesLockedBy(TransactionId tid) {
+        ArrayList<PageId> pages = new ArrayList<PageId>();
+        Map<Object, Mode> held = lockSets.get(tid);
+        if (held != null) {
+            for (Object resource : held.keySet()) {
+                if (resource instanceof PageId) {
+                    pages.add((PageId) resource);
+                }
+            }
+        }
+        return pages;
+    }
+
+    private ResourceLock lockFor(Object resource) {
+        ResourceLock lock = locks.get(resource);
+        if (lock == null) {
+            ResourceLock created = new ResourceLock();
+            lock = locks.putIfAbsent(resource, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    private ConcurrentHashMap<Object, Mode> lockSet(TransactionId tid) {
+        ConcurrentHashMap<Object, Mode> held = lockSets.get(tid);
+        if (held == null) {
+            ConcurrentHashMap<Object, Mode> created = new ConcurrentHashMap<Object, Mode>();
+            held = lockSets.putIfAbsent(tid, created);
+            if (held == null) {
+                held = created;
+            }
+        }
+        return held;
+    }
+
+    private void unlock(TransactionId tid, Object resource) {
+        ResourceLock lock = locks.get(resource);
+        if (lock == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (lock.holders.remove(tid) == null) {
+                return;
+            }
+            if (lock.waiters > 0) {
+                lock.notifyAll();
+            } else if (lock.holders.isEmpty()) {
+                // drop unused locks so the table only holds locked resources
+                lock.retired = true;
+                locks.remove(resource, lock);
+            }
+        }
+    }
+}
@@ -4,6 +4,12 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +38,16 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+Records are appended to an in-memory log buffer, under the lock of the
+log and then briefly under the lock of the buffer; a flusher thread
+writes the buffer to the end of the file in large chunks and forces the
+file when someone waits for it.  The position of a record in the log is
+its LSN; it grows across truncations of the log.  A page carries the LSN
+of the end of its last record, and the buffer pool flushes the log up to
+it before writing the page.  Methods that read the file first wait for
+the buffer to be written.
 */
 
 /**
@@ -42,6 +58,10 @@ must not be declared synchronized and must begin with a block like:
 <li> The first long integer of the file represents the offset of the
 last written checkpoint, or -1 if there are no checkpoints
 
+<li> The second long integer is a mark above every transaction id handed
+out so far, so that ids keep growing across restarts.  It is kept when
+the log is thrown out or truncated.
+
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
@@ -51,8 +71,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, RECORD,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,6 +81,18 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records identify a page as the images do, without its data,
+and list the byte ranges of the page that differ between its before and
+after images: an integer count of ranges, then an integer offset, an
+integer length, and the bytes before and after for each range.
+
+<li>RECORD records log a tuple inserted into or deleted from a heap page
+under intention locks, while other transactions may be changing other
+tuples of the page.  They identify the page as the images do, followed by
+an integer slot, a boolean that is true for an insert, an integer length
+and the bytes of the tuple.  Recovery redoes and undoes them one tuple at
+a time.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
@@ -70,7 +102,6 @@ for each active transaction.
 </ul>
 
 */
-
 public class LogFile {
 
     final File logFile;
@@ -82,16 +113,60 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int RECORD_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    // the checkpoint offset and the mark of transaction ids
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    // transaction ids are reserved this many at a time
+    static final long ID_BLOCK = 1 << 16;
+
+    /** Size of each of the two log buffers records are appended to. */
+    public static final int LOG_BUFFER_BYTES = 1 << 20;
+    // a DELTA record may take up to this share of a page; pages that
+    // changed more are logged whole
+    static final int MAX_DELTA_FRACTION = 4;
+
+    long currentOffset = -1;//protected by this; written under bufferLock too
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    private long idMark; // protected by this
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // offsets of the UPDATE, DELTA and RECORD records of each live transaction, oldest first
+    HashMap<Long,ArrayList<Long>> tidToUpdateRecords = new HashMap<Long,ArrayList<Long>>();
+
+    // log buffer: records are appended to the active buffer, and the
+    // flusher thread writes the full one to the file while the other fills
+    private final Object bufferLock = new Object();
+    private ByteBuffer active = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES); // protected by bufferLock
+    private ByteBuffer spare = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES); // null while written; protected by bufferLock
+    private long written = 0; // end of the log in the file; protected by bufferLock
+    private long durable = 0; // end of the log forced to disk; protected by bufferLock
+    private long durableWanted = 0; // protected by bufferLock
+    private boolean flushScheduled = false; // protected by bufferLock
+    private boolean flushing = false; // protected by bufferLock
+    private IOException flushError = null; // protected by bufferLock
+    private long groupForces = 0; // protected by bufferLock
+    // LSN of offset 0 of the file: the log bytes truncated so far.  The LSN
+    // of a position in the log is lsnBase plus its offset, and never goes
+    // down.  Written under this and bufferLock.
+    private long lsnBase = 0;
+
+    private static final ThreadFactory FLUSHER_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-log-flusher");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final ThreadPoolExecutor flusher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), FLUSHER_THREADS);
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,6 +183,12 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            idMark = raf.readLong();
+        }
+        TransactionId.resumeFrom(idMark);
+        flusher.allowCoreThreadTimeOut(true);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -130,8 +211,216 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
+            raf.writeLong(idMark);
             raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (bufferLock) {
+                currentOffset = raf.getFilePointer();
+                written = currentOffset;
+                durable = currentOffset;
+            }
+        }
+    }
+
+    /**
+     * Raises the mark of transaction ids above id, unless it is already,
+     * and forces it to disk before returning.  Ids are reserved a block at
+     * a time, so the mark is seldom written.
+     * @return the mark; ids below it may be handed out
+     */
+    synchronized long reserveIds(long id) {
+        if (id >= idMark) {
+            idMark = id + ID_BLOCK;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                int at = LONG_SIZE;
+                if (raf.length() < HEADER_SIZE) {
+                    // nothing was logged yet
+                    header.putLong(NO_CHECKPOINT_ID);
+                    at = 0;
+                }
+                header.putLong(idMark);
+                header.flip();
+                FileChannel channel = raf.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header, at + header.position());
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException("unable to reserve transaction ids", e);
+            }
+        }
+        return idMark;
+    }
+
+    /**
+     * A log record being serialized.  Records are built outside the locks
+     * of the log and only copied into the log buffer under them.
+     */
+    private static class Record extends DataOutputStream {
+        Record(int type, long tid) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeInt(type);
+            writeLong(tid);
+        }
+
+        /** @return the bytes of the record, ending with room for its start offset */
+        byte[] toByteArray() throws IOException {
+            writeLong(0);
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    /**
+     * Appends a record to the log buffer, filling in its start offset.
+     * Waits while the buffer has no room for it.  Caller must hold this.
+     * @return the offset the record starts at
+     */
+    private long append(byte[] record) throws IOException {
+        preAppend();
+        synchronized (bufferLock) {
+            long start = currentOffset;
+            for (int i = 0; i < LONG_SIZE; i++) {
+                record[record.length - 1 - i] = (byte) (start >>> (8 * i));
+            }
+            while (active.remaining() < record.length) {
+                if (active.position() == 0) {
+                    // larger than a buffer
+                    active = ByteBuffer.allocateDirect(record.length);
+                    break;
+                }
+                scheduleFlush();
+                awaitFlusher("appending to the log");
+            }
+            active.put(record);
+            currentOffset += record.length;
+            if (active.position() >= active.capacity() / 2) {
+                scheduleFlush();
+            }
+            return start;
+        }
+    }
+
+    /** Starts the flusher unless it runs already.  Caller must hold bufferLock. */
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        flusher.execute(new Runnable() {
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /** Waits for the flusher to make progress.  Caller must hold bufferLock. */
+    private void awaitFlusher(String what) throws IOException {
+        if (flushError != null) {
+            throw new IOException("unable to write the log", flushError);
+        }
+        try {
+            bufferLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while " + what);
+        }
+    }
+
+    /**
+     * Body of the flusher thread: writes the active buffer to the end of
+     * the file, while appends go to the other one, and forces the file if
+     * someone waits for it, until there is nothing left to do.  All
+     * commits waiting while the file is forced share the next force.
+     */
+    private void flush() {
+        while (true) {
+            ByteBuffer chunk;
+            FileChannel channel;
+            long at, end;
+            boolean sync;
+            synchronized (bufferLock) {
+                sync = durableWanted > durable;
+                if (active.position() == 0 && !sync) {
+                    flushScheduled = false;
+                    bufferLock.notifyAll();
+                    return;
+                }
+                chunk = active;
+                active = spare;
+                spare = null;
+                at = written;
+                end = currentOffset;
+                channel = raf.getChannel();
+                flushing = true;
+            }
+            IOException error = null;
+            try {
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk, at + chunk.position());
+                }
+                if (sync) {
+                    channel.force(true);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (bufferLock) {
+                chunk.clear();
+                spare = chunk;
+                flushing = false;
+                if (error != null) {
+                    flushError = error;
+                    flushScheduled = false;
+                    bufferLock.notifyAll();
+                    return;
+                }
+                written = end;
+                if (sync) {
+                    durable = end;
+                    groupForces++;
+                }
+                bufferLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns once the log is on disk up to the given LSN.  The flusher
+     * forces the log; commits that wait meanwhile share the next force.
+     */
+    public void flushTo(long lsn) throws IOException {
+        synchronized (bufferLock) {
+            while (true) {
+                // LSNs past the end of the log are not of this log
+                long offset = Math.min(lsn - lsnBase, currentOffset);
+                if (offset <= durable) {
+                    return;
+                }
+                durableWanted = Math.max(durableWanted, offset);
+                scheduleFlush();
+                awaitFlusher("forcing the log");
+            }
+        }
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    public long getFlushedLSN() {
+        synchronized (bufferLock) {
+            return lsnBase + durable;
+        }
+    }
+
+    /**
+     * Waits until the flusher is idle and the whole log is in the file,
+     * so that it may be read or replaced.  Caller must hold this.
+     */
+    private void drain() throws IOException {
+        synchronized (bufferLock) {
+            while (written < currentOffset || flushing) {
+                scheduleFlush();
+                awaitFlusher("writing the log");
+            }
         }
     }
 
@@ -149,79 +438,318 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
-                preAppend();
                 //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                append(new Record(ABORT_RECORD, tid.getId()).toByteArray());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToUpdateRecords.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The record is appended under the lock of the log, but the force
+        is not: transactions that commit meanwhile wait for the same
+        force, so one force makes a whole group of commits durable.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        byte[] record = new Record(COMMIT_RECORD, tid.getId()).toByteArray();
+        long lsn;
+        synchronized (this) {
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            append(record);
+            lsn = lsnBase + currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToUpdateRecords.remove(tid.getId());
+        }
+        flushTo(lsn);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the number of forces of the log made by the flusher */
+    public long getGroupForces() {
+        synchronized (bufferLock) {
+            return groupForces;
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /**
+     * Logs a page tid changed ahead of writing it to its file, if tid is
+     * still running, so that the write can be undone.  Before the write,
+     * the caller must also flush the log up to the LSN of the page.  If the
+     * page stays cached, the caller must then make it its own before image,
+     * so that the next record of tid for it starts where this one ends.
+     * @return true if the page was logged
+     */
+    public boolean logBeforeWrite(TransactionId tid, Page page) throws IOException {
+        synchronized (this) {
+            if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+                return false;
+            }
+        }
+        logWrite(tid, page.getBeforeImage(), page);
+        return true;
+    }
+
+    /** Write a record to the log for the specified tid and page, which
+        recovery can redo and undo.  This is a DELTA record of the bytes
+        that differ between the before and after images, unless too many
+        do; then it is an UPDATE record with both images.  The after image
+        gets the LSN of the end of the record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        byte[] data = after.getPageData();
+        // what tid changed since its last record of the page, if the page
+        // was written out meanwhile, or else since it began: redo replays
+        // the records of a page in order, and undo reverses them
+        byte[] base = before.getPageData();
+
+        synchronized (this) {
+            Record record = null;
+            if (base.length == data.length) {
+                record = deltaRecord(tid, after, base, data);
+            }
+            if (record == null) {
+                /* update record conists of
+
+                   record type
+                   transaction id
+                   before page data (see writePageData)
+                   after page data
+                   start offset
+                */
+                record = new Record(UPDATE_RECORD, tid.getId());
+                writePageData(record, before);
+                writePageHeader(record, after.getClass().getName(), after.getId());
+                record.writeInt(data.length);
+                record.write(data);
+            }
+            long start = append(record.toByteArray());
+            Debug.log("WRITE, offset = " + start);
+            ArrayList<Long> updates = tidToUpdateRecords.get(tid.getId());
+            if (updates != null) {
+                updates.add(start);
+            }
+            after.setLSN(lsnBase + currentOffset);
+        }
+    }
+
+    /**
+     * Logs the insert or delete of the tuple in a slot of a heap page by
+     * tid under intention locks, if tid is running, as a RECORD record.
+     * The caller must hold the lock of the log from changing the page
+     * until this returns, so that no checkpoint and no write of the page
+     * comes between the change and its record.  The page gets the LSN of
+     * the end of the record.
+     */
+    public synchronized void logRecordChange(TransactionId tid, HeapPage page, int slot,
+            boolean inserted) throws IOException {
+        ArrayList<Long> updates = tidToUpdateRecords.get(tid.getId());
+        if (updates == null) {
+            return;
+        }
+        TupleChange change = new TupleChange(page.getClass().getName(), page.getId(), slot,
+                inserted, page.tupleData(slot));
+        Record record = new Record(RECORD_RECORD, tid.getId());
+        writeTupleChange(record, change);
+        updates.add(append(record.toByteArray()));
+        page.setLSN(lsnBase + currentOffset);
+    }
+
+    /** A tuple inserted or deleted, as logged by a RECORD record. */
+    private static class TupleChange {
+        final String pageClassName;
+        final PageId pid;
+        final int slot;
+        final boolean inserted;
+        final byte[] tuple;
+
+        TupleChange(String pageClassName, PageId pid, int slot, boolean inserted, byte[] tuple) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.slot = slot;
+            this.inserted = inserted;
+            this.tuple = tuple;
+        }
+    }
+
+    private void writeTupleChange(DataOutput out, TupleChange change) throws IOException {
+        writePageHeader(out, change.pageClassName, change.pid);
+        out.writeInt(change.slot);
+        out.writeBoolean(change.inserted);
+        out.writeInt(change.tuple.length);
+        out.write(change.tuple);
+    }
+
+    private TupleChange readTupleChange(RandomAccessFile raf) throws IOException {
+        String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        int slot = raf.readInt();
+        boolean inserted = raf.readBoolean();
+        byte[] tuple = new byte[raf.readInt()];
+        raf.readFully(tuple);
+        return new TupleChange(pageClassName, pid, slot, inserted, tuple);
+    }
+
+    /**
+     * Redoes or undoes a tuple change by tid on the latest version of its
+     * page (see latestData).
+     */
+    private Page applyTupleChange(TupleChange change, long tid, Map<PageId, Page> images,
+            boolean redo) throws IOException {
+        HeapPage page = (HeapPage) newPage(change.pageClassName, change.pid,
+                latestData(change.pid, images));
+        page.applyRecordChange(change.slot, change.inserted, change.tuple, tid, redo);
+        return page;
+    }
+
+    /**
+     * The changes a DELTA record makes to a page: byte ranges with their
+     * contents before and after.
+     */
+    private static class Delta {
+        final String pageClassName;
+        final PageId pid;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        Delta(String pageClassName, PageId pid, int ranges) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            offsets = new int[ranges];
+            before = new byte[ranges][];
+            after = new byte[ranges][];
+        }
+
+        /** @return the page data, changed in place to the after (redo) or before contents */
+        byte[] apply(byte[] data, boolean redo) {
+            for (int i = 0; i < offsets.length; i++) {
+                byte[] bytes = redo ? after[i] : before[i];
+                System.arraycopy(bytes, 0, data, offsets[i], bytes.length);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Builds a DELTA record turning base, the before image of a page,
+     * into data.
+     * @return the record, or null if it would take more than
+     *   1/MAX_DELTA_FRACTION of the page
+     */
+    private Record deltaRecord(TransactionId tid, Page page, byte[] base, byte[] data)
+        throws IOException {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int size = 0;
+        int i = 0;
+        while (i < data.length) {
+            if (base[i] == data[i]) {
+                i++;
+                continue;
+            }
+            // join changes closer than the cost of starting a range
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < data.length && i - end < 2 * INT_SIZE; i++) {
+                if (base[i] != data[i]) {
+                    end = i + 1;
+                }
+            }
+            ranges.add(new int[] {start, end});
+            size += 2 * INT_SIZE + 2 * (end - start);
+            if (size > data.length / MAX_DELTA_FRACTION) {
+                return null;
+            }
+        }
+
+        /* delta record consists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page class name, id class name and id (see writePageHeader)
+           number of ranges
+           offset, length, bytes before and bytes after of each range
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        Delta delta = new Delta(page.getClass().getName(), page.getId(), ranges.size());
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            delta.offsets[r] = start;
+            delta.before[r] = Arrays.copyOfRange(base, start, end);
+            delta.after[r] = Arrays.copyOfRange(data, start, end);
+        }
+        Record record = new Record(DELTA_RECORD, tid.getId());
+        writeDelta(record, delta);
+        return record;
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    private void writeDelta(DataOutput out, Delta delta) throws IOException {
+        writePageHeader(out, delta.pageClassName, delta.pid);
+        out.writeInt(delta.offsets.length);
+        for (int i = 0; i < delta.offsets.length; i++) {
+            out.writeInt(delta.offsets[i]);
+            out.writeInt(delta.after[i].length);
+            out.write(delta.before[i]);
+            out.write(delta.after[i]);
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    private Delta readDelta(RandomAccessFile raf) throws IOException {
+        String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        Delta delta = new Delta(pageClassName, pid, raf.readInt());
+        for (int i = 0; i < delta.offsets.length; i++) {
+            delta.offsets[i] = raf.readInt();
+            delta.before[i] = new byte[raf.readInt()];
+            delta.after[i] = new byte[delta.before[i].length];
+            raf.readFully(delta.before[i]);
+            raf.readFully(delta.after[i]);
+        }
+        return delta;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /**
+     * Applies a delta to the latest version of its page (see latestData).
+     * Any version of the page since the records of the transaction began
+     * will do, as a delta holds whole bytes, not changes to them.
+     */
+    private Page applyDelta(Delta delta, Map<PageId, Page> images, boolean redo)
+        throws IOException {
+        return newPage(delta.pageClassName, delta.pid, delta.apply(latestData(delta.pid, images), redo));
+    }
 
+    /**
+     * @return a copy of the data of the latest version of a page: the one
+     *   in images if there, else the one in its file, which a running
+     *   transaction's records were all written to
+     */
+    private byte[] latestData(PageId pid, Map<PageId, Page> images) {
+        if (images != null && images.containsKey(pid)) {
+            return images.get(pid).getPageData();
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -230,7 +758,15 @@ public class LogFile {
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
+        writePageHeader(raf, p.getClass().getName(), p.getId());
+        byte[] pageData = p.getPageData();
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
+
+    private void writePageHeader(DataOutput raf, String pageClassName, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
         String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
@@ -240,59 +776,66 @@ public class LogFile {
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+
+        int pageSize = raf.readInt();
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + pid.getTableId() + ", page = " + pid.pageno());
+        return newPage(pageClassName, pid, pageData);
+    }
 
+    private PageId readPageId(RandomAccessFile raf) throws IOException {
+        String idClassName = raf.readUTF();
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("unable to read a " + idClassName, e);
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            // pages are built from their bytes; B+ tree pages also take
+            // the key field of their file
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length >= 2 && params[1] == byte[].class) {
+                    pageConst = c;
+                    break;
+                }
+            }
+            if (pageConst == null) {
+                throw new IOException("no way to build a " + pageClassName + " from its bytes");
+            }
+            Object[] pageArgs;
+            if (pageConst.getParameterTypes().length == 2) {
+                pageArgs = new Object[] {pid, pageData};
+            } else {
+                BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                pageArgs = new Object[] {pid, pageData, file.keyField()};
+            }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            return (Page)pageConst.newInstance(pageArgs);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("unable to build a " + pageClassName, e);
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -306,12 +849,9 @@ public class LogFile {
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = append(new Record(BEGIN_RECORD, tid.getId()).toByteArray());
+        tidToFirstLogRecord.put(tid.getId(), start);
+        tidToUpdateRecords.put(tid.getId(), new ArrayList<Long>());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -321,35 +861,31 @@ public class LogFile {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                Record record = new Record(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                record.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    record.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    record.writeLong(tidToFirstLogRecord.get(key));
                 }
+                startCpOffset = append(record.toByteArray());
 
-                //once the CP is written, make sure the CP location at the
+                //once the CP is on disk, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                force();
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -361,6 +897,9 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        // the flusher must neither write nor force the file being replaced
+        force();
+        drain();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -392,9 +931,13 @@ public class LogFile {
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
         logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        logNew.writeLong((cpLoc - minLogRecord) + HEADER_SIZE);
+        logNew.writeLong(idMark);
 
         raf.seek(minLogRecord);
+        for (ArrayList<Long> updates : tidToUpdateRecords.values()) {
+            updates.clear();
+        }
 
         //have to rewrite log records since offsets are different after truncation
         while (true) {
@@ -415,6 +958,24 @@ public class LogFile {
 
                     writePageData(logNew, before);
                     writePageData(logNew, after);
+                    ArrayList<Long> updates = tidToUpdateRecords.get(record_tid);
+                    if (updates != null) {
+                        updates.add(newStart);
+                    }
+                    break;
+                case DELTA_RECORD:
+                    writeDelta(logNew, readDelta(raf));
+                    updates = tidToUpdateRecords.get(record_tid);
+                    if (updates != null) {
+                        updates.add(newStart);
+                    }
+                    break;
+                case RECORD_RECORD:
+                    writeTupleChange(logNew, readTupleChange(raf));
+                    updates = tidToUpdateRecords.get(record_tid);
+                    if (updates != null) {
+                        updates.add(newStart);
+                    }
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -423,11 +984,14 @@ public class LogFile {
                         long xid = raf.readLong();
                         long xoffset = raf.readLong();
                         logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        logNew.writeLong((xoffset - minLogRecord) + HEADER_SIZE);
                     }
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    // transactions that ended since stay ended
+                    if (tidToFirstLogRecord.containsKey(record_tid)) {
+                        tidToFirstLogRecord.put(record_tid,newStart);
+                    }
                     break;
                 }
 
@@ -442,6 +1006,9 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        logNew.getChannel().force(true);
+        logNew.close();
+
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -449,7 +1016,14 @@ public class LogFile {
         raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        synchronized (bufferLock) {
+            // LSNs stay where they were
+            lsnBase += minLogRecord - HEADER_SIZE;
+            currentOffset = raf.getFilePointer();
+            written = currentOffset;
+            durable = currentOffset;
+            durableWanted = currentOffset;
+        }
         //print();
     }
 
@@ -458,16 +1032,78 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        Only pages with UPDATE or DELTA records need this: those the
+        buffer pool wrote out while the transaction ran.  Their records are
+        undone, newest first, and the pages put back in the buffer pool;
+        the buffer pool undoes the pages it never wrote, and the tuples of
+        RECORD records.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            Collection<Page> images;
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                ArrayList<Long> updates = tidToUpdateRecords.get(tid.getId());
+                if (updates == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+                }
+                // the records may still be in the log buffer
+                if (!updates.isEmpty()) {
+                    drain();
+                }
+                images = undoImages(updates, null, false);
             }
+            // not under the lock of the log, which evicting threads take
+            // while holding the buffer pool's frames
+            restore(tid, images);
+        }
+    }
+
+    /**
+     * Undoes the UPDATE and DELTA records at the given offsets, oldest
+     * first, which must be in the file, starting from the latest versions
+     * of their pages (see latestData).
+     * @param images pages as last replayed by recovery, or null
+     * @param tuples true to undo RECORD records too, false to skip them
+     * @return for each page, its version before the oldest record
+     */
+    private Collection<Page> undoImages(List<Long> offsets, Map<PageId, Page> images,
+            boolean tuples) throws IOException {
+        LinkedHashMap<PageId, Page> undone = new LinkedHashMap<PageId, Page>();
+        for (int i = offsets.size() - 1; i >= 0; i--) {
+            raf.seek(offsets.get(i));
+            int type = raf.readInt();
+            long tid = raf.readLong();
+            if (type == RECORD_RECORD) {
+                if (tuples) {
+                    TupleChange change = readTupleChange(raf);
+                    undone.put(change.pid, applyTupleChange(change, tid,
+                            undone.containsKey(change.pid) ? undone : images, false));
+                }
+            } else if (type == UPDATE_RECORD) {
+                Page before = readPageData(raf);
+                undone.put(before.getId(), before);
+            } else {
+                Delta delta = readDelta(raf);
+                undone.put(delta.pid, applyDelta(delta, undone.containsKey(delta.pid) ? undone : images, false));
+            }
+        }
+        return undone.values();
+    }
+
+    /**
+     * Puts pages back in the buffer pool for tid.  Their files keep the
+     * versions written while tid ran until they are evicted; recovery
+     * undoes those too, as the ABORT record follows.
+     */
+    private void restore(TransactionId tid, Collection<Page> pages) throws IOException {
+        for (Page p : pages) {
+            Database.getBufferPool().restorePage(tid, p);
         }
     }
 
@@ -488,14 +1124,162 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        The log is replayed from the last checkpoint, which wrote out
+        every page, installing the after image of each UPDATE record, the
+        changes of each DELTA record and the tuple of each RECORD record,
+        whatever its transaction: this repeats history, so the pages end
+        up as they were when the log ended.  An ABORT record is replayed
+        as the rollback that came right before it.  Then the transactions
+        that neither committed nor aborted are rolled back, and ABORT
+        records are written for them, so that recovering again starts
+        from the same state.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            // the latest version of each page replayed
+            HashMap<PageId, Page> replayed = new HashMap<PageId, Page>();
             synchronized (this) {
+                drain();
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < HEADER_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    raf.writeLong(idMark);
+                }
+                raf.seek(0);
+                long checkpoint = raf.readLong();
+
+                // UPDATE records of the transactions running at the point
+                // of the log being replayed
+                HashMap<Long, ArrayList<Long>> running = new HashMap<Long, ArrayList<Long>>();
+                long redoFrom = HEADER_SIZE;
+                long start = HEADER_SIZE;
+                if (checkpoint != NO_CHECKPOINT_ID) {
+                    raf.seek(checkpoint);
+                    raf.readInt();
+                    raf.readLong();
+                    int numXactions = raf.readInt();
+                    redoFrom = checkpoint;
+                    start = checkpoint;
+                    while (numXactions-- > 0) {
+                        long xid = raf.readLong();
+                        long first = raf.readLong();
+                        running.put(xid, new ArrayList<Long>());
+                        start = Math.min(start, first);
+                    }
+                }
+
+                raf.seek(start);
+                long offset = start;
+                try {
+                    while (offset < raf.length()) {
+                        int type = raf.readInt();
+                        long record_tid = raf.readLong();
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            running.put(record_tid, new ArrayList<Long>());
+                            break;
+                        case UPDATE_RECORD:
+                            readPageData(raf);
+                            Page after = readPageData(raf);
+                            ArrayList<Long> updates = running.get(record_tid);
+                            if (updates != null) {
+                                updates.add(offset);
+                            }
+                            // the checkpoint wrote out everything before it
+                            if (offset >= redoFrom) {
+                                writeOut(after);
+                                replayed.put(after.getId(), after);
+                            }
+                            break;
+                        case DELTA_RECORD:
+                            Delta delta = readDelta(raf);
+                            updates = running.get(record_tid);
+                            if (updates != null) {
+                                updates.add(offset);
+                            }
+                            if (offset >= redoFrom) {
+                                Page changed = applyDelta(delta, replayed, true);
+                                writeOut(changed);
+                                replayed.put(changed.getId(), changed);
+                            }
+                            break;
+                        case RECORD_RECORD:
+                            TupleChange change = readTupleChange(raf);
+                            updates = running.get(record_tid);
+                            if (updates != null) {
+                                updates.add(offset);
+                            }
+                            if (offset >= redoFrom) {
+                                Page changed = applyTupleChange(change, record_tid, replayed, true);
+                                writeOut(changed);
+                                replayed.put(changed.getId(), changed);
+                            }
+                            break;
+                        case ABORT_RECORD:
+                            ArrayList<Long> undone = running.remove(record_tid);
+                            if (undone != null && offset >= redoFrom) {
+                                long next = raf.getFilePointer();
+                                for (Page p : undoImages(undone, replayed, true)) {
+                                    writeOut(p);
+                                    replayed.put(p.getId(), p);
+                                }
+                                raf.seek(next);
+                            }
+                            break;
+                        case COMMIT_RECORD:
+                            running.remove(record_tid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            int numXactions = raf.readInt();
+                            raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                            break;
+                        default:
+                            throw new IOException("unknown log record type " + type + " at " + offset);
+                        }
+                        raf.readLong();
+                        offset = raf.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    // the last record was not completely written; it
+                    // cannot be a commit anybody was told of
+                    raf.setLength(offset);
+                }
+                synchronized (bufferLock) {
+                    currentOffset = offset;
+                    written = offset;
+                    durable = offset;
+                }
+
+                // roll back the losers.  A page a loser changed whole was
+                // changed by it alone; on pages shared under intention
+                // locks, each loser only undoes the tuples it changed
+                ArrayList<Long> losers = new ArrayList<Long>(running.keySet());
+                for (long xid : losers) {
+                    for (Page p : undoImages(running.get(xid), replayed, true)) {
+                        writeOut(p);
+                        replayed.put(p.getId(), p);
+                    }
+                }
+                for (long xid : losers) {
+                    append(new Record(ABORT_RECORD, xid).toByteArray());
+                }
+                force();
+                tidToFirstLogRecord.clear();
+                tidToUpdateRecords.clear();
+            }
+            // cached versions of the pages are out of date
+            for (PageId pid : replayed.keySet()) {
+                Database.getBufferPool().discardPage(pid);
             }
-         }
+        }
+    }
+
+    /** Writes a page read from the log to its file. */
+    private void writeOut(Page p) throws IOException {
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1287,9 @@ public class LogFile {
         // some code goes here
     }
 
+    /** Returns once everything appended to the log so far is on disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushTo(lsnBase + currentOffset);
     }
 
 }
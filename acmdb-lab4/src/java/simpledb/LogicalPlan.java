@@ -348,6 +348,14 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // estimated cardinalities of the subplans, for instantiateJoin
+        HashMap<String,Integer> subplanCards = new HashMap<String,Integer>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            subplanCards.put(table.alias, s == null ? -1
+                    : s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+        }
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -381,9 +389,13 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            int card1 = subplanCards.get(t1name);
+            int card2 = isSubqueryJoin ? -1 : subplanCards.get(t2name);
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = jo.instantiateJoin(lj,plan1,plan2,card1,card2);
             subplanMap.put(t1name, j);
+            subplanCards.put(t1name, card1 < 0 || card2 < 0 ? -1
+                    : jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap));
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
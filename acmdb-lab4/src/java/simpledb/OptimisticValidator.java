@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps what optimistic transactions need to validate at commit.
+ * <p>
+ * An optimistic transaction reads heap pages without locks, noting the
+ * version each page had when it first read it, and changes private copies
+ * of the pages it writes.  At commit it locks these pages, so they cannot
+ * change any more, and checks that none of them changed since it read
+ * them; only then are its copies put in the buffer pool.  The version of a
+ * page goes up whenever a transaction that held it exclusively ends.
+ */
+class OptimisticValidator {
+
+    // page versions; pages with no entry are at version 0
+    private final ConcurrentHashMap<PageId, AtomicLong> versions =
+            new ConcurrentHashMap<PageId, AtomicLong>();
+    private final ConcurrentHashMap<TransactionId, Workspace> workspaces =
+            new ConcurrentHashMap<TransactionId, Workspace>();
+    private final AtomicLong failures = new AtomicLong();
+
+    /** The read and write sets of one optimistic transaction, only used by its thread. */
+    static class Workspace {
+        // the version of each page read, when it was first read
+        final HashMap<PageId, Long> reads = new HashMap<PageId, Long>();
+        // private copies of the pages to change, all of which are read too
+        final HashMap<PageId, Page> writes = new HashMap<PageId, Page>();
+        boolean validated;
+    }
+
+    /** Makes tid optimistic. */
+    void begin(TransactionId tid) {
+        workspaces.putIfAbsent(tid, new Workspace());
+    }
+
+    /** @return the workspace of tid, or null if it is not optimistic */
+    Workspace workspace(TransactionId tid) {
+        return workspaces.get(tid);
+    }
+
+    /** Forgets the workspace of tid, which has ended. */
+    void end(TransactionId tid) {
+        workspaces.remove(tid);
+    }
+
+    /** @return the current version of pid */
+    long version(PageId pid) {
+        AtomicLong v = versions.get(pid);
+        return v == null ? 0 : v.get();
+    }
+
+    /** Notes that pid changed, or may have: optimistic readers of it fail validation. */
+    void changed(PageId pid) {
+        AtomicLong v = versions.get(pid);
+        if (v == null) {
+            AtomicLong created = new AtomicLong();
+            v = versions.putIfAbsent(pid, created);
+            if (v == null) {
+                v = created;
+            }
+        }
+        v.incrementAndGet();
+    }
+
+    /** @return true if no page in w's read set changed since it was read */
+    boolean unchanged(Workspace w) {
+        for (Map.Entry<PageId, Long> e : w.reads.entrySet()) {
+            if (version(e.getKey()) != e.getValue()) {
+                failures.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of optimistic transactions that failed validation */
+    long getFailures() {
+        return failures.get();
+    }
+}
@@ -33,6 +33,16 @@ public interface Page {
    */
     public void markDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * Returns the LSN of the end of the last log record of this page, or 0
+     * if it has none.  The log must be on disk up to it before the page is
+     * written out.
+     */
+    public long getLSN();
+
+    /** Sets the LSN of the end of the last log record of this page. */
+    public void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
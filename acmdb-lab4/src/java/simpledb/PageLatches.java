@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Short-term shared and exclusive latches on the pages of one B+ tree.
+ * <p>
+ * Latches are separate from the locks of the LockManager: a lock keeps a
+ * page away from other transactions until its holder commits, while a
+ * latch only keeps the page stable while one operation reads or changes
+ * it, and is released as soon as the operation moves on. Deadlock
+ * detection does not see latches, so a thread holding latches never waits
+ * for a lock, and latches are taken top-down from the root pointer.
+ */
+class PageLatches {
+
+    // latches of the pages some operation holds or waits for; a latch is
+    // removed by its last user, so the map does not grow with the tree
+    private final ConcurrentHashMap<PageId, Latch> latches =
+            new ConcurrentHashMap<PageId, Latch>();
+
+    private static class Latch extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+
+        // operations holding or waiting for the latch; once it drops to 0
+        // the latch is being removed and nobody may take it
+        final AtomicInteger users = new AtomicInteger(1);
+    }
+
+    /** @return the latch on pid, counted as used once more */
+    private Latch acquire(PageId pid) {
+        while (true) {
+            Latch latch = latches.get(pid);
+            if (latch == null) {
+                latch = new Latch();
+                if (latches.putIfAbsent(pid, latch) == null)
+                    return latch;
+                continue;
+            }
+            int users = latch.users.get();
+            if (users == 0) {
+                // its last user is removing it
+                latches.remove(pid, latch);
+            } else if (latch.users.compareAndSet(users, users + 1)) {
+                return latch;
+            }
+        }
+    }
+
+    /** Unlocks l, taken on the latch of pid, and drops the latch if unused. */
+    private void release(PageId pid, Lock l) {
+        l.unlock();
+        Latch latch = latches.get(pid);
+        if (latch.users.decrementAndGet() == 0)
+            latches.remove(pid, latch);
+    }
+
+    /** @return the number of pages with a latch, for tests */
+    int size() {
+        return latches.size();
+    }
+
+    /** @return an empty set of latches for one operation */
+    Held newHeld() {
+        return new Held();
+    }
+
+    /** The latches one operation holds, in the order it took them. */
+    class Held {
+        private final LinkedHashMap<PageId, Lock> held = new LinkedHashMap<PageId, Lock>();
+
+        boolean holds(PageId pid) {
+            return held.containsKey(pid);
+        }
+
+        /** Latches pid, unless this operation already holds it. */
+        void latch(PageId pid, boolean exclusive) {
+            if (held.containsKey(pid))
+                return;
+            Latch latch = acquire(pid);
+            Lock l = exclusive ? latch.writeLock() : latch.readLock();
+            l.lock();
+            held.put(pid, l);
+        }
+
+        /** Latches pid and releases every other latch: one step of crabbing. */
+        void crab(PageId pid, boolean exclusive) {
+            latch(pid, exclusive);
+            releaseAllBut(pid);
+        }
+
+        /** Releases every latch except the one on pid. */
+        void releaseAllBut(PageId pid) {
+            Iterator<Map.Entry<PageId, Lock>> it = held.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageId, Lock> e = it.next();
+                if (!e.getKey().equals(pid)) {
+                    release(e.getKey(), e.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        void releaseAll() {
+            for (Map.Entry<PageId, Lock> e : held.entrySet())
+                release(e.getKey(), e.getValue());
+            held.clear();
+        }
+    }
+}
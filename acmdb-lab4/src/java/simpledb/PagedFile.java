@@ -0,0 +1,307 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The on-disk file behind a DbFile, accessed with positional reads and
+ * writes on one long-lived FileChannel, so reading or writing a page is a
+ * single system call with no open, seek or close around it.
+ * <p>
+ * Channels are pooled: at most {@link #MAX_OPEN_FILES} files are kept open,
+ * and the least recently used idle channel is closed to make room for a new
+ * one.  A closed file is reopened transparently on its next use.  This
+ * also covers a channel closed because a thread using it was interrupted.
+ * Reads and writes of an open file only count themselves in and out of it;
+ * the lock of the pool is only taken to open or close a channel.
+ * <p>
+ * The file size is cached and kept up to date by writes made through this
+ * object, and re-read whenever the channel is opened;
+ * {@link #refreshSize()} picks up changes made by anyone else meanwhile.
+ * <p>
+ * Optionally the whole file is also mapped read-only into memory, and
+ * {@link #mapped} hands out regions of the mapping so pages can be built
+ * without a system call or a copy.  Writes still go through the channel;
+ * on Linux the mapping and the channel share the OS page cache, so the
+ * mapping sees them.  When a read reaches past the end of the mapping
+ * because the file grew, the file is mapped again.
+ */
+class PagedFile {
+
+    /** Maximum number of channels open at once. */
+    static final int MAX_OPEN_FILES = 128;
+
+    // pins of a file whose channel is being closed
+    private static final int CLOSING = Integer.MIN_VALUE;
+
+    // files with an open channel; guards opening and closing channels
+    private static final HashSet<PagedFile> openFiles = new HashSet<PagedFile>();
+
+    private final File file;
+    private volatile FileChannel channel;
+    // number of I/O calls currently using channel, or CLOSING
+    private final AtomicInteger pins = new AtomicInteger();
+    // System.nanoTime() of the last pin, to close the least recently used
+    private volatile long lastUsed;
+    // size in bytes, -1 until the file is first opened
+    private final AtomicLong size = new AtomicLong(-1);
+    private volatile boolean memoryMapped = false;
+    // read-only mapping of the file, or null; replaced when the file grows
+    private volatile MappedByteBuffer mapping;
+
+    PagedFile(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /** @return true if reads may be served from a memory mapping of the file */
+    boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Turns the read-only memory mapping of this file on or off.
+     */
+    void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            mapping = null;
+        }
+    }
+
+    /**
+     * Returns a read-only view of len bytes at position in the memory mapping,
+     * mapping or remapping the file if needed.
+     *
+     * @return the region, or null if the file is not memory-mapped, the region
+     *   is not entirely inside the file, or the file is too large to map in
+     *   one piece; the caller then reads through the channel instead
+     */
+    ByteBuffer mapped(long position, int len) throws IOException {
+        if (!memoryMapped) {
+            return null;
+        }
+        long end = position + len;
+        MappedByteBuffer m = mapping;
+        if (m == null || end > m.capacity()) {
+            m = remap(end);
+            if (m == null) {
+                return null;
+            }
+        }
+        ByteBuffer region = m.duplicate();
+        region.limit((int) end).position((int) position);
+        return region.slice();
+    }
+
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        MappedByteBuffer m = mapping;
+        if (m != null && end <= m.capacity()) {
+            // another reader remapped while we waited
+            return m;
+        }
+        long s = refreshSize();
+        if (end > s || s > Integer.MAX_VALUE) {
+            return null;
+        }
+        FileChannel ch = pin();
+        try {
+            m = ch.map(FileChannel.MapMode.READ_ONLY, 0, s);
+        } finally {
+            unpin();
+        }
+        if (memoryMapped) {
+            mapping = m;
+        }
+        return m;
+    }
+
+    /**
+     * Reads up to buf.length bytes starting at position.
+     * @return the number of bytes read, less than buf.length only at end of file
+     */
+    int read(long position, byte[] buf) throws IOException {
+        while (true) {
+            FileChannel ch = pin();
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                while (bb.hasRemaining()) {
+                    if (ch.read(bb, position + bb.position()) < 0) {
+                        break;
+                    }
+                }
+                return bb.position();
+            } catch (ClosedChannelException e) {
+                retryUnlessInterrupted(e);
+            } finally {
+                unpin();
+            }
+        }
+    }
+
+    /**
+     * Writes all of data starting at position, growing the file if needed.
+     */
+    void write(long position, byte[] data) throws IOException {
+        boolean done = false;
+        while (!done) {
+            FileChannel ch = pin();
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(data);
+                while (bb.hasRemaining()) {
+                    ch.write(bb, position + bb.position());
+                }
+                done = true;
+            } catch (ClosedChannelException e) {
+                retryUnlessInterrupted(e);
+            } finally {
+                unpin();
+            }
+        }
+        growSize(position + data.length);
+    }
+
+    /**
+     * Writes data at the end of the file.
+     * @return the position data was written at
+     */
+    long append(byte[] data) throws IOException {
+        long position;
+        synchronized (this) {
+            // reserve the space so concurrent appends do not overlap
+            position = size();
+            size.addAndGet(data.length);
+        }
+        write(position, data);
+        return position;
+    }
+
+    /** @return the cached size of the file in bytes */
+    long size() throws IOException {
+        long s = size.get();
+        if (s < 0) {
+            pin();
+            unpin();
+            s = size.get();
+        }
+        return s;
+    }
+
+    /**
+     * Re-reads the size from the open channel, for files that may have been
+     * extended outside this object.
+     * @return the size of the file in bytes
+     */
+    long refreshSize() throws IOException {
+        FileChannel ch = pin();
+        try {
+            growSize(ch.size());
+            return size.get();
+        } finally {
+            unpin();
+        }
+    }
+
+    /** Raises the cached size to s, unless it is larger already. */
+    private void growSize(long s) {
+        long cur;
+        while ((cur = size.get()) < s && !size.compareAndSet(cur, s)) {
+        }
+    }
+
+    /**
+     * An interrupt during I/O closes the channel for every thread using it.
+     * The interrupted thread gets the exception; the others retry on a
+     * fresh channel.
+     */
+    private static void retryUnlessInterrupted(ClosedChannelException e)
+            throws ClosedChannelException {
+        if (e instanceof ClosedByInterruptException) {
+            throw e;
+        }
+    }
+
+    /**
+     * Counts an I/O call in on the open channel, opening it if needed.
+     * Every pin must be followed by an unpin.
+     */
+    private FileChannel pin() throws IOException {
+        lastUsed = System.nanoTime();
+        int p = pins.get();
+        // a closer holds the lock of the pool; wait for it there
+        while (p >= 0) {
+            if (pins.compareAndSet(p, p + 1)) {
+                FileChannel ch = channel;
+                if (ch != null && ch.isOpen()) {
+                    return ch;
+                }
+                unpin();
+                break;
+            }
+            p = pins.get();
+        }
+        synchronized (openFiles) {
+            // no closer runs while we hold the lock, so pins is not CLOSING
+            FileChannel ch = channel;
+            if (ch == null || !ch.isOpen()) {
+                ch = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                // others may have written to the file while it was closed
+                growSize(ch.size());
+                channel = ch;
+                openFiles.add(this);
+                closeIdleFiles(this);
+            }
+            pins.incrementAndGet();
+            return ch;
+        }
+    }
+
+    private void unpin() {
+        pins.decrementAndGet();
+    }
+
+    /**
+     * Closes least recently used idle channels, other than keep, while too
+     * many are open.  Must be called with the lock of the pool held.
+     */
+    private static void closeIdleFiles(PagedFile keep) {
+        while (openFiles.size() > MAX_OPEN_FILES) {
+            PagedFile victim = null;
+            for (PagedFile f : openFiles) {
+                if (f != keep && f.pins.get() == 0
+                        && (victim == null || f.lastUsed - victim.lastUsed < 0)) {
+                    victim = f;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            // keep new pins out while the channel goes; if one got in
+            // first, look again
+            if (!victim.pins.compareAndSet(0, CLOSING)) {
+                continue;
+            }
+            openFiles.remove(victim);
+            try {
+                victim.channel.close();
+            } catch (IOException e) {
+                // nothing is lost; the file is reopened on its next use
+            }
+            victim.channel = null;
+            victim.pins.set(0);
+        }
+    }
+}
@@ -9,6 +9,7 @@ public class PlanCache {
     HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
     HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
     HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
+    HashMap<Set<LogicalJoinNode>,String> bestSortedOn = new HashMap<Set<LogicalJoinNode>,String>();
     
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
@@ -19,9 +20,19 @@ public class PlanCache {
         @param order the ordering of the joins in the plan
     */
     void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
+        addPlan(s, cost, card, order, null);
+    }
+
+    /** Like addPlan above, for a plan whose tuples come out sorted
+        @param sortedOn the quantified name of the field the plan returns its
+        tuples in ascending order of, or null if they are in no known order
+    */
+    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order,
+            String sortedOn) {
         bestOrders.put(s,order);                        
         bestCosts.put(s,cost);
         bestCardinalities.put(s,card);
+        bestSortedOn.put(s,sortedOn);
     }
     
     /** Find the best join order in the cache for the specified plan 
@@ -47,4 +58,12 @@ public class PlanCache {
     int getCard(Set<LogicalJoinNode> s) {
         return bestCardinalities.get(s);
     }
+
+    /** Find the field the best join order for the specified plan is sorted on
+        @param s the set of joins to look up
+        @return the quantified name of the field, or null if the order is unknown
+    */
+    String getSortedOn(Set<LogicalJoinNode> s) {
+        return bestSortedOn.get(s);
+    }
 }
@@ -0,0 +1,228 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Per-scan read-ahead state.  A scan reports each page it moves to; once it
+ * has moved to the next page in sequence a few times in a row, the pages
+ * ahead of it are loaded into the BufferPool in the background, so a scan
+ * waits on per-page latency only until the window is primed.  The window
+ * starts small and doubles on every refill, up to
+ * {@link BufferPool#getReadAheadPages()}.
+ * <p>
+ * Heap files are sequential when page numbers are consecutive; B+ tree leaf
+ * scans are sequential when each leaf is the right sibling of the previous
+ * one, and the pages ahead are found by following right-sibling pointers.
+ * A range scan with an upper bound never reads ahead past the leaf where the
+ * scan itself will stop.
+ * <p>
+ * Instances belong to a single iterator and are not shared between threads,
+ * apart from the result of the background leaf walk.  The walk holds no
+ * locks, so it reads each leaf under a shared latch of its tree, as writers
+ * change leaves under exclusive ones.
+ */
+class ReadAhead {
+
+    /** Number of sequential page moves before reading ahead. */
+    static final int SEQUENTIAL_RUN = 2;
+    private static final int INITIAL_WINDOW = 4;
+
+    private int window = INITIAL_WINDOW;
+    private int run = 0;
+
+    // heap files
+    private int lastPageNo = -1;
+    private int prefetchedUpTo = -1;
+
+    // B+ tree leaves
+    private BTreePageId lastLeaf = null;
+    private volatile boolean walking = false;
+    private LeafWalk lastWalk = null;
+    private IndexPredicate bound = null;
+    private int keyField;
+    private final PageLatches latches;
+
+    /** The outcome of one background walk along the leaf level. */
+    private static class LeafWalk {
+        final Set<PageId> pages = new HashSet<PageId>();
+        BTreePageId trigger;
+        BTreePageId next;
+    }
+
+    /** Creates the read-ahead state of a heap file scan. */
+    ReadAhead() {
+        this(null);
+    }
+
+    /**
+     * Creates the read-ahead state of a B+ tree leaf scan.
+     * @param latches the latches of the tree's pages
+     */
+    ReadAhead(PageLatches latches) {
+        this.latches = latches;
+    }
+
+    /** Forgets the scan position, e.g. when the iterator is rewound. */
+    void reset() {
+        window = INITIAL_WINDOW;
+        run = 0;
+        lastPageNo = -1;
+        prefetchedUpTo = -1;
+        lastLeaf = null;
+        lastWalk = null;
+    }
+
+    /**
+     * Called when a heap file scan moves to page pageNo.
+     *
+     * @param tableId the heap file being scanned
+     * @param pageNo the page the scan is about to read
+     * @param numPages the number of pages in the file
+     */
+    void onHeapPage(int tableId, int pageNo, int numPages) {
+        if (pageNo == lastPageNo) {
+            return;
+        }
+        if (pageNo == lastPageNo + 1) {
+            run++;
+        } else {
+            run = 0;
+            window = INITIAL_WINDOW;
+            prefetchedUpTo = pageNo;
+        }
+        lastPageNo = pageNo;
+
+        BufferPool pool = Database.getBufferPool();
+        int limit = pool.getReadAheadPages();
+        if (limit == 0 || run < SEQUENTIAL_RUN || pageNo + window / 2 < prefetchedUpTo) {
+            return;
+        }
+        int from = Math.max(pageNo + 1, prefetchedUpTo + 1);
+        int to = Math.min(numPages - 1, pageNo + Math.min(window, limit));
+        if (from > to) {
+            return;
+        }
+        ArrayList<PageId> pids = new ArrayList<PageId>(to - from + 1);
+        for (int p = from; p <= to; p++) {
+            pids.add(new HeapPageId(tableId, p));
+        }
+        pool.prefetchPages(pids);
+        prefetchedUpTo = to;
+        window = Math.min(window * 2, limit);
+    }
+
+    /**
+     * Limits B+ tree read-ahead to the leaves a search with ipred can reach.
+     */
+    void setBound(IndexPredicate ipred, int keyField) {
+        Op op = ipred.getOp();
+        if (op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ) {
+            this.bound = ipred;
+            this.keyField = keyField;
+        }
+    }
+
+    /**
+     * @return true if the scan ends on leaf, i.e. its last key is beyond the bound
+     */
+    private boolean endsOn(BTreeLeafPage leaf) {
+        if (bound == null) {
+            return false;
+        }
+        Iterator<Tuple> it = leaf.reverseIterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        Field last = it.next().getField(keyField);
+        if (bound.getOp() == Op.EQUALS) {
+            return last.compare(Op.GREATER_THAN, bound.getField());
+        }
+        return !last.compare(bound.getOp(), bound.getField());
+    }
+
+    /**
+     * Called when a B+ tree scan moves to a leaf page.
+     */
+    void onLeafPage(BTreeLeafPage page) {
+        BTreePageId id = page.getId();
+        if (id.equals(lastLeaf)) {
+            return;
+        }
+        run = (lastLeaf != null && lastLeaf.equals(page.getLeftSiblingId())) ? run + 1 : 0;
+        lastLeaf = id;
+
+        final int limit = Database.getBufferPool().getReadAheadPages();
+        if (limit == 0 || run < SEQUENTIAL_RUN || walking || endsOn(page)) {
+            return;
+        }
+        BTreePageId start;
+        synchronized (this) {
+            if (lastWalk == null || !lastWalk.pages.contains(id)) {
+                // nothing read ahead yet, or the scan overtook the last walk
+                start = page.getRightSiblingId();
+                window = INITIAL_WINDOW;
+            } else if (id.equals(lastWalk.trigger)) {
+                start = lastWalk.next;
+            } else {
+                return;
+            }
+        }
+        if (start == null) {
+            return;
+        }
+        walkLeaves(start, Math.min(window, limit));
+        window = Math.min(window * 2, limit);
+    }
+
+    /** Loads up to count leaves starting at start, following right siblings. */
+    private void walkLeaves(final BTreePageId start, final int count) {
+        // set before the task can clear it
+        walking = true;
+        final BufferPool pool = Database.getBufferPool();
+        boolean queued = pool.readAhead(new Runnable() {
+            public void run() {
+                LeafWalk walk = new LeafWalk();
+                try {
+                    BTreePageId pid = start;
+                    for (int i = 0; i < count && pid != null; i++) {
+                        // latched before it is looked up, so it is the
+                        // cached version and no writer changes it meanwhile
+                        PageLatches.Held held = latches.newHeld();
+                        held.latch(pid, false);
+                        try {
+                            Page p = pool.readAheadPage(pid);
+                            if (!(p instanceof BTreeLeafPage)) {
+                                break;
+                            }
+                            walk.pages.add(pid);
+                            if (i == count / 2) {
+                                walk.trigger = pid;
+                            }
+                            if (endsOn((BTreeLeafPage) p)) {
+                                pid = null;
+                                break;
+                            }
+                            pid = ((BTreeLeafPage) p).getRightSiblingId();
+                        } finally {
+                            held.releaseAll();
+                        }
+                    }
+                    walk.next = pid;
+                    synchronized (ReadAhead.this) {
+                        lastWalk = walk;
+                    }
+                } finally {
+                    walking = false;
+                }
+            }
+        });
+        if (!queued) {
+            walking = false;
+        }
+    }
+}
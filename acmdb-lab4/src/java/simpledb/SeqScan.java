@@ -91,6 +91,16 @@ public class SeqScan implements DbIterator {
         // some code goes here
     }
 
+    /**
+     * Lets filter drop tuples whose field keyField it rules out before they
+     * are decoded, or stops filtering if filter is null.
+     */
+    void setKeyFilter(int keyField, BloomFilter filter) {
+        if (iter instanceof HeapFile.HeapFileIterator) {
+            ((HeapFile.HeapFileIterator) iter).setKeyFilter(keyField, filter);
+        }
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -0,0 +1,322 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children on an equality or a range predicate by
+ * sorting both on their join fields and merging them.
+ * <p>
+ * The inner child is read into memory and sorted, unless it is sorted
+ * already; the outer one is streamed if it is sorted, and read and sorted
+ * like the inner one otherwise.  As the outer tuples come in ascending
+ * order, the inner tuples each joins with are a range of the sorted inner
+ * tuples whose bounds only move forward, so no predicate is evaluated per
+ * pair of tuples.  An equality join of two sorted children streams both,
+ * keeping only the inner tuples with the key of the current outer tuple.
+ * <p>
+ * Otherwise what it keeps in memory grows with its children, so the
+ * optimizer only picks it for children estimated to fit in
+ * DEFAULT_MAX_TUPLES.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Most tuples the optimizer lets a SortMergeJoin keep in memory. */
+    public static final int DEFAULT_MAX_TUPLES = 1 << 16;
+
+    private JoinPredicate pred;
+    private DbIterator c1, c2;
+    private final Comparator<Field> order = new Comparator<Field>() {
+        public int compare(Field a, Field b) {
+            if (a.compare(Predicate.Op.EQUALS, b)) {
+                return 0;
+            }
+            return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+        }
+    };
+    // the sorted outer tuples, or null if the outer child is read directly
+    private ArrayList<Tuple> outer;
+    private int outerPos;
+    private final ArrayList<Tuple> inner = new ArrayList<Tuple>();
+    // true if both children are read directly, inner holding one key only
+    private boolean streaming;
+    // the next inner tuple not read into inner yet, when streaming
+    private Tuple next2;
+    private int peakTuples;
+    private Tuple cur1;
+    // the first inner tuples whose key is at least, and more than, that of cur1
+    private int lo, hi;
+    // the inner tuples left to join with cur1
+    private int pos, end;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of
+     *            Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN,
+     *            Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ and
+     *            Predicate.Op.LESS_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException if the predicate cannot be merged on
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        }
+        pred = p;
+        c1 = child1;
+        c2 = child2;
+    }
+
+    /** @return true if a SortMergeJoin can join on op */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * @return true if it is known that it returns its tuples in ascending
+     *         order of the given field: it sorts them, or reads a B+ tree
+     *         keyed on the field
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof BTreeScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(((BTreeScan) it).getTableName()));
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        if (it instanceof Filter) {
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        }
+        if (it instanceof SortMergeJoin) {
+            return ((SortMergeJoin) it).pred.getField1() == field;
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return c1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return c2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(c1.getTupleDesc(), c2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        c1.open();
+        c2.open();
+        inner.clear();
+        outer = null;
+        peakTuples = 0;
+        boolean sorted2 = isSortedOn(c2, pred.getField2());
+        streaming = pred.getOperator() == Predicate.Op.EQUALS && sorted2
+                && isSortedOn(c1, pred.getField1());
+        if (streaming) {
+            restart();
+            return;
+        }
+        while (c2.hasNext()) {
+            inner.add(c2.next());
+        }
+        if (!sorted2) {
+            sort(inner, pred.getField2());
+        }
+        if (!isSortedOn(c1, pred.getField1())) {
+            outer = new ArrayList<Tuple>();
+            while (c1.hasNext()) {
+                outer.add(c1.next());
+            }
+            sort(outer, pred.getField1());
+        }
+        peakTuples = inner.size() + (outer == null ? 0 : outer.size());
+        restart();
+    }
+
+    /**
+     * @return the most tuples of its children it has held in memory at once
+     *         since it was opened
+     */
+    public int getPeakTuples() {
+        return peakTuples;
+    }
+
+    private void sort(ArrayList<Tuple> tuples, final int field) {
+        Collections.sort(tuples, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                return order.compare(a.getField(field), b.getField(field));
+            }
+        });
+    }
+
+    private void restart() throws DbException, TransactionAbortedException {
+        if (streaming) {
+            inner.clear();
+            next2 = c2.hasNext() ? c2.next() : null;
+        }
+        outerPos = 0;
+        cur1 = null;
+        lo = 0;
+        hi = 0;
+        pos = 0;
+        end = 0;
+    }
+
+    public void close() {
+        super.close();
+        c1.close();
+        c2.close();
+        inner.clear();
+        outer = null;
+        cur1 = null;
+        next2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (outer == null) {
+            c1.rewind();
+        }
+        if (streaming) {
+            c2.rewind();
+        }
+        restart();
+    }
+
+    /**
+     * Makes inner hold the inner tuples with the given key, reading on from
+     * the inner child if it does not already; keys only go up.
+     */
+    private void readGroup(Field key) throws DbException, TransactionAbortedException {
+        if (!inner.isEmpty() && order.compare(inner.get(0).getField(pred.getField2()), key) == 0) {
+            return;
+        }
+        inner.clear();
+        while (next2 != null && order.compare(next2.getField(pred.getField2()), key) < 0) {
+            next2 = c2.hasNext() ? c2.next() : null;
+        }
+        while (next2 != null && order.compare(next2.getField(pred.getField2()), key) == 0) {
+            inner.add(next2);
+            next2 = c2.hasNext() ? c2.next() : null;
+        }
+        peakTuples = Math.max(peakTuples, inner.size());
+    }
+
+    private Tuple nextOuter() throws DbException, TransactionAbortedException {
+        if (outer != null) {
+            return outerPos < outer.size() ? outer.get(outerPos++) : null;
+        }
+        return c1.hasNext() ? c1.next() : null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the tuples come in ascending order of the outer join
+     * field, and of the inner one for each outer tuple.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (pos >= end) {
+            cur1 = nextOuter();
+            if (cur1 == null) {
+                return null;
+            }
+            Field key = cur1.getField(pred.getField1());
+            if (streaming) {
+                readGroup(key);
+                pos = 0;
+                end = inner.size();
+                continue;
+            }
+            while (lo < inner.size() && order.compare(inner.get(lo).getField(pred.getField2()), key) < 0) {
+                lo++;
+            }
+            hi = Math.max(hi, lo);
+            while (hi < inner.size() && order.compare(inner.get(hi).getField(pred.getField2()), key) <= 0) {
+                hi++;
+            }
+            // the inner tuples t2 with key OP t2.field2
+            switch (pred.getOperator()) {
+            case EQUALS:
+                pos = lo;
+                end = hi;
+                break;
+            case LESS_THAN:
+                pos = hi;
+                end = inner.size();
+                break;
+            case LESS_THAN_OR_EQ:
+                pos = lo;
+                end = inner.size();
+                break;
+            case GREATER_THAN:
+                pos = 0;
+                end = lo;
+                break;
+            case GREATER_THAN_OR_EQ:
+                pos = 0;
+                end = hi;
+                break;
+            default:
+                throw new DbException("cannot merge join on " + pred.getOperator());
+            }
+        }
+        return merge(cur1, inner.get(pos++));
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        TupleDesc td = getTupleDesc();
+        int len1 = c1.getTupleDesc().numFields();
+        Tuple ret = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (i < len1) {
+                ret.setField(i, t1.getField(i));
+            } else {
+                ret.setField(i, t2.getField(i - len1));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { c1, c2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        c1 = children[0];
+        c2 = children[1];
+        cur1 = null;
+    }
+
+}
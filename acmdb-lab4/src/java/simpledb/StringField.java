@@ -66,6 +66,15 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	public void serialize(byte[] buf, int offset) {
+		int len = Math.min(value.length(), maxSize);
+		new IntField(len).serialize(buf, offset);
+		offset += 4;
+		for (int i = 0; i < len; i++)
+			buf[offset + i] = (byte) value.charAt(i);
+		java.util.Arrays.fill(buf, offset + len, offset + maxSize, (byte) 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
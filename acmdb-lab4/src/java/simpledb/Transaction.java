@@ -9,15 +9,29 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean optimistic;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param optimistic true to run under optimistic concurrency control:
+     *   read without locks, and validate at commit instead
+     * @see BufferPool#beginOptimistic
+     */
+    public Transaction(boolean optimistic) {
         tid = new TransactionId();
+        this.optimistic = optimistic;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,9 +43,34 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
+    /**
+     * Finish the transaction
+     * @throws IOException also if the transaction is optimistic and fails
+     *   validation; it is aborted then, as by tryCommit
+     */
     public void commit() throws IOException {
+        if (!tryCommit()) {
+            throw new IOException("transaction " + tid.getId() + " failed validation",
+                    new TransactionAbortedException());
+        }
+    }
+
+    /**
+     * Finish the transaction, unless it is optimistic and fails validation;
+     * it is aborted then.
+     * @return true if the transaction committed
+     */
+    public boolean tryCommit() throws IOException {
+        if (started) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                return false;
+            }
+        }
         transactionComplete(false);
+        return true;
     }
 
     /** Finish the transaction */
@@ -47,8 +86,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the dirty pages for this transaction; they are
+                //written out when evicted
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -10,11 +10,31 @@ public class TransactionId implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    // multi-version pages keep the ids of the transactions that wrote them
+    // on disk, so ids must keep growing across restarts, not start over.
+    // The log keeps a mark above every id handed out; see LogFile.reserveIds
     static AtomicLong counter = new AtomicLong(0);
+    // ids below this are covered by the mark on disk
+    private static volatile long reserved = 0;
     final long myid;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        if (myid >= reserved) {
+            reserved = Database.getLogFile().reserveIds(myid);
+        }
+    }
+
+    /**
+     * Makes ids start from the mark of a log an earlier run wrote.
+     * @param mark the mark; every id handed out before is below it
+     */
+    static void resumeFrom(long mark) {
+        long id = counter.get();
+        while (id < mark && !counter.compareAndSet(id, mark)) {
+            id = counter.get();
+        }
+        reserved = mark;
     }
 
     public long getId() {
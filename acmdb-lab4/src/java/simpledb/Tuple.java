@@ -1,15 +1,18 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be backed by the page's bytes, in which case
+ * each field is decoded the first time it is asked for.
  */
 public class Tuple implements Serializable {
 
@@ -17,8 +20,11 @@ public class Tuple implements Serializable {
 
 
     private RecordId recordId;
-    private List<Field> fieldList;
+    private Field[] fields;
     private TupleDesc tupleDesc;
+    // serialized form of the fields not decoded yet, or null
+    private transient byte[] source;
+    private transient int sourceOffset;
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -30,16 +36,28 @@ public class Tuple implements Serializable {
         // some code goes here
         Type stringType = Type.STRING_TYPE;
         tupleDesc = td;
-        fieldList = new ArrayList<>();
+        fields = new Field[td.numFields()];
         for (int i = 0; i < td.numFields(); i++) {
             if (td.getFieldType(i).equals(stringType)) {
-                fieldList.add(new StringField("", 128));
+                fields[i] = new StringField("", 128);
             } else {
-                fieldList.add(new IntField(0));
+                fields[i] = new IntField(0);
             }
         }
     }
 
+    /**
+     * Create a tuple whose fields are decoded on demand from a serialized
+     * tuple at the given offset of source.  source must not change while
+     * the tuple is in use.
+     */
+    Tuple(TupleDesc td, byte[] source, int offset) {
+        tupleDesc = td;
+        fields = new Field[td.numFields()];
+        this.source = source;
+        this.sourceOffset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -78,7 +96,14 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        fieldList.set(i, f);
+        if (source != null) {
+            // the serialized form no longer matches; keep only the fields
+            for (int j = 0; j < fields.length; j++) {
+                getField(j);
+            }
+            source = null;
+        }
+        fields[i] = f;
     }
 
     /**
@@ -89,7 +114,13 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fieldList.get(i);
+        Field f = fields[i];
+        if (f == null && source != null) {
+            // racing readers decode equal fields, so no lock is needed
+            f = tupleDesc.getFieldType(i).parse(source, sourceOffset + tupleDesc.getFieldOffset(i));
+            fields[i] = f;
+        }
+        return f;
         //return null;
     }
 
@@ -104,12 +135,12 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         String ret = "";
-        //System.out.println(fieldList.size());
-        for (int i = 0; i < fieldList.size(); i++) {
+        //System.out.println(fields.length);
+        for (int i = 0; i < fields.length; i++) {
             if (i == 0) {
-                ret += fieldList.get(i).toString();
+                ret += getField(i).toString();
             } else {
-                ret = ret + "\t" + fieldList.get(i).toString();
+                ret = ret + "\t" + getField(i).toString();
             }
         }
         return ret;
@@ -123,7 +154,10 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return fieldList.iterator();
+        for (int i = 0; i < fields.length; i++) {
+            getField(i);
+        }
+        return Arrays.asList(fields).iterator();
         //return null;
     }
 
@@ -134,13 +168,42 @@ public class Tuple implements Serializable {
     {
         // some code goes here
         Type stringType = Type.STRING_TYPE;
+        for (int i = 0; i < fields.length; i++) {
+            getField(i);
+        }
         tupleDesc = td;
+        int old = fields.length;
+        fields = Arrays.copyOf(fields, old + td.numFields());
         for (int i = 0; i < td.numFields(); i++) {
             if (td.getFieldType(i).equals(stringType)) {
-                fieldList.add(new StringField(null, 128));
+                fields[old + i] = new StringField(null, 128);
             } else {
-                fieldList.add(new IntField(0));
+                fields[old + i] = new IntField(0);
             }
         }
+        source = null;
+    }
+
+    /**
+     * Writes this tuple into buf at offset in its on-page format, copying
+     * the bytes it was read from if none of its fields has changed.
+     */
+    void serialize(byte[] buf, int offset) {
+        if (source != null) {
+            System.arraycopy(source, sourceOffset, buf, offset, tupleDesc.getSize());
+            return;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            fields[i].serialize(buf, offset);
+            offset += tupleDesc.getFieldType(i).getLen();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // decode everything so the page bytes are not needed afterwards
+        for (int i = 0; i < fields.length; i++) {
+            getField(i);
+        }
+        out.defaultWriteObject();
     }
 }
@@ -196,6 +196,17 @@ public class TupleDesc implements Serializable {
         return 0;
     }
 
+    /**
+     * @return the byte offset of the ith field within a serialized tuple
+     */
+    int getFieldOffset(int i) {
+        int offset = 0;
+        for (int j = 0; j < i; j++) {
+            offset += items.get(j).fieldType.getLen();
+        }
+        return offset;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
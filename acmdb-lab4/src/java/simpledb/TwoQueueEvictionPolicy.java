@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scan-resistant 2Q replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * A page read for the first time enters A1in, a FIFO that holds about a
+ * quarter of the pool.  Pages pushed out of A1in leave their id behind in
+ * A1out, a bounded list of recently evicted page ids.  Only a page that is
+ * read again while remembered in A1out is admitted to Am, the main LRU
+ * queue.  A large sequential scan therefore cycles through A1in and leaves
+ * pages that are re-referenced over time (e.g. B+ tree internal pages) in Am.
+ * <p>
+ * Unlike {@link ClockEvictionPolicy}, a hit on a page in Am reorders a
+ * shared list and so takes this policy's monitor.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+    // frame -> page id, in arrival order
+    private final LinkedHashMap<Integer, PageId> a1in;
+    // frame -> page id, least recently used first
+    private final LinkedHashMap<Integer, PageId> am;
+    // ids of pages recently pushed out of a1in, oldest first
+    private final LinkedHashSet<PageId> a1out;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     */
+    public TwoQueueEvictionPolicy(int numFrames) {
+        this.kin = Math.max(1, numFrames / 4);
+        this.kout = Math.max(1, numFrames / 2);
+        this.a1in = new LinkedHashMap<Integer, PageId>();
+        this.am = new LinkedHashMap<Integer, PageId>(16, 0.75f, true);
+        this.a1out = new LinkedHashSet<PageId>();
+    }
+
+    public void recordHit(int frame, PageId pid) {
+        hits.incrementAndGet();
+        synchronized (this) {
+            // a get on an access-ordered map moves the frame to the MRU end;
+            // hits in A1in deliberately leave the FIFO order alone
+            am.get(frame);
+        }
+    }
+
+    public void recordMiss(PageId pid) {
+        misses.incrementAndGet();
+    }
+
+    public synchronized void admit(int frame, PageId pid) {
+        if (a1out.remove(pid)) {
+            am.put(frame, pid);
+        } else {
+            a1in.put(frame, pid);
+        }
+    }
+
+    public synchronized void remove(int frame, PageId pid, boolean evicted) {
+        // only evicted pages are remembered: reading a discarded page again
+        // says nothing about how hot it is
+        if (a1in.remove(frame) != null && evicted) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            am.remove(frame);
+        }
+    }
+
+    public synchronized int chooseVictim(FrameFilter filter) {
+        int victim;
+        if (a1in.size() > kin) {
+            victim = firstAccepted(a1in, filter);
+            if (victim == -1) {
+                victim = firstAccepted(am, filter);
+            }
+        } else {
+            victim = firstAccepted(am, filter);
+            if (victim == -1) {
+                victim = firstAccepted(a1in, filter);
+            }
+        }
+        return victim;
+    }
+
+    private static int firstAccepted(Map<Integer, PageId> queue, FrameFilter filter) {
+        for (int frame : queue.keySet()) {
+            if (filter.accept(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -24,6 +24,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] buf, int offset) {
+            return new IntField(readInt(buf, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +47,12 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] buf, int offset) {
+            int strLen = readInt(buf, offset);
+            return new StringField(new String(buf, offset + 4, strLen), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +71,15 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object decoded from the
+   *   serialized form at offset in buf, as written by Field.serialize.
+   */
+    public abstract Field parse(byte[] buf, int offset);
+
+    static int readInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
 }
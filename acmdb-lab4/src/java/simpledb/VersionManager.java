@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which versions of the records of multi-version tables each
+ * transaction sees.
+ * <p>
+ * Every version is stamped with the transaction that created it and, once
+ * deleted, the one that deleted it.  A transaction reads a snapshot: the
+ * versions whose creator committed before the snapshot was taken, and
+ * whose deleter had not.  So readers take no locks, and never wait for
+ * writers nor make them wait.  A deleted version is only freed once no
+ * snapshot can see it any more, by vacuum.
+ */
+class VersionManager {
+    /** The stamp of a version nobody deleted; as a creator, visible to all. */
+    static final long NONE = -1;
+
+    private static final long IN_PROGRESS = Long.MAX_VALUE;
+
+    // transactions that stamped versions: IN_PROGRESS, then their commit
+    // number.  Aborted ones are dropped once their versions are undone, and
+    // committed ones once every snapshot sees them.
+    private final ConcurrentHashMap<Long, Long> writers = new ConcurrentHashMap<Long, Long>();
+    // snapshots of running transactions; taken and dropped under this
+    private final ConcurrentHashMap<TransactionId, Snapshot> snapshots =
+            new ConcurrentHashMap<TransactionId, Snapshot>();
+    // multi-version files that may hold versions to vacuum
+    private final Set<HeapFile> toVacuum =
+            Collections.newSetFromMap(new ConcurrentHashMap<HeapFile, Boolean>());
+    private long commits;
+
+    /** The versions one transaction sees. */
+    class Snapshot {
+        private final long tid;
+        private final long commit;
+
+        private Snapshot(long tid, long commit) {
+            this.tid = tid;
+            this.commit = commit;
+        }
+
+        /** @return true if the changes of writer are part of this snapshot */
+        private boolean includes(long writer) {
+            if (writer == tid) {
+                return true;
+            }
+            Long committed = writers.get(writer);
+            return committed == null || committed <= commit;
+        }
+
+        /** @return true if a version with these stamps is visible in this snapshot */
+        boolean sees(long creator, long deleter) {
+            return (creator == NONE || includes(creator))
+                    && (deleter == NONE || !includes(deleter));
+        }
+    }
+
+    /**
+     * Returns the snapshot of tid, taking it on first use.  A null tid gets
+     * a snapshot of what is committed now, which is not kept.
+     */
+    Snapshot snapshot(TransactionId tid) {
+        if (tid == null) {
+            synchronized (this) {
+                return new Snapshot(NONE, commits);
+            }
+        }
+        Snapshot s = snapshots.get(tid);
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            s = snapshots.get(tid);
+            if (s == null) {
+                s = new Snapshot(tid.getId(), commits);
+                snapshots.put(tid, s);
+            }
+            return s;
+        }
+    }
+
+    /** Registers tid as a writer; must be called before it stamps a version. */
+    void beginWrite(TransactionId tid) {
+        writers.putIfAbsent(tid.getId(), IN_PROGRESS);
+    }
+
+    /**
+     * Ends tid: on commit the versions it stamped become part of the
+     * snapshots taken from now on.  On abort they must have been undone.
+     * @return true if tid stamped versions or had a snapshot
+     */
+    synchronized boolean finish(TransactionId tid, boolean commit) {
+        boolean wrote;
+        if (commit) {
+            wrote = writers.replace(tid.getId(), IN_PROGRESS, ++commits);
+        } else {
+            wrote = writers.remove(tid.getId()) != null;
+        }
+        return snapshots.remove(tid) != null || wrote;
+    }
+
+    /** @return the oldest commit any snapshot, running or future, is taken at */
+    private synchronized long horizon() {
+        long oldest = commits;
+        for (Snapshot s : snapshots.values()) {
+            oldest = Math.min(oldest, s.commit);
+        }
+        return oldest;
+    }
+
+    /** @return true if no snapshot can see a version deleted by deleter any more */
+    boolean isDead(long deleter) {
+        if (deleter == NONE) {
+            return false;
+        }
+        Long committed = writers.get(deleter);
+        return committed == null || committed <= horizon();
+    }
+
+    /** Forgets writers that every snapshot includes, so their stamps count as committed. */
+    void prune() {
+        long horizon = horizon();
+        for (Map.Entry<Long, Long> e : writers.entrySet()) {
+            if (e.getValue() <= horizon) {
+                writers.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /** Notes that file has deleted versions that vacuum should look at. */
+    void addToVacuum(HeapFile file) {
+        toVacuum.add(file);
+    }
+
+    /** @return true if some file may hold versions to vacuum */
+    boolean hasToVacuum() {
+        return !toVacuum.isEmpty();
+    }
+
+    /** Takes the files that may hold versions to vacuum. */
+    HeapFile[] takeToVacuum() {
+        HeapFile[] files = toVacuum.toArray(new HeapFile[0]);
+        toVacuum.removeAll(Arrays.asList(files));
+        return files;
+    }
+}
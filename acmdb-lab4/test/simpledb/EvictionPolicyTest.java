@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final EvictionPolicy.FrameFilter ANY = new EvictionPolicy.FrameFilter() {
+        public boolean accept(int frame) {
+            return true;
+        }
+    };
+
+    /**
+     * Drives a policy the way BufferPool does, without any real pages.
+     */
+    private static class PolicyHarness {
+        final EvictionPolicy policy;
+        final HashMap<PageId, Integer> table = new HashMap<PageId, Integer>();
+        final PageId[] frames;
+
+        PolicyHarness(EvictionPolicy policy, int numFrames) {
+            this.policy = policy;
+            this.frames = new PageId[numFrames];
+        }
+
+        /** @return true if pid was already cached */
+        boolean access(PageId pid) {
+            Integer frame = table.get(pid);
+            if (frame != null) {
+                policy.recordHit(frame, pid);
+                return true;
+            }
+            policy.recordMiss(pid);
+            int free = -1;
+            for (int i = 0; i < frames.length && free == -1; i++) {
+                if (frames[i] == null) {
+                    free = i;
+                }
+            }
+            if (free == -1) {
+                free = policy.chooseVictim(ANY);
+                table.remove(frames[free]);
+                policy.remove(free, frames[free], true);
+            }
+            frames[free] = pid;
+            table.put(pid, free);
+            policy.admit(free, pid);
+            return false;
+        }
+    }
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * Warms up two hot pages while a scan runs past them, then runs a long
+     * scan with no hot accesses.
+     *
+     * @return the number of hot pages still cached after the long scan
+     */
+    private static int hotPagesSurvivingScan(EvictionPolicy policy, int numFrames) {
+        PolicyHarness pool = new PolicyHarness(policy, numFrames);
+        PageId hot0 = page(0);
+        PageId hot1 = page(1);
+        int next = 100;
+        for (int round = 0; round < 20; round++) {
+            pool.access(hot0);
+            pool.access(hot1);
+            pool.access(page(next++));
+            pool.access(page(next++));
+        }
+        for (int i = 0; i < 10 * numFrames; i++) {
+            pool.access(page(next++));
+        }
+        int survivors = 0;
+        if (pool.table.containsKey(hot0)) survivors++;
+        if (pool.table.containsKey(hot1)) survivors++;
+        return survivors;
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: referenced frames get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ClockEvictionPolicy clock = new ClockEvictionPolicy(4);
+        for (int i = 0; i < 4; i++) {
+            clock.admit(i, page(i));
+        }
+        // every frame is referenced, so the hand goes round once clearing bits
+        assertEquals(0, clock.chooseVictim(ANY));
+        clock.remove(0, page(0), false);
+        clock.admit(0, page(4));
+        clock.recordHit(1, page(1));
+        // frame 1 was hit since the sweep, frame 2 was not
+        assertEquals(2, clock.chooseVictim(ANY));
+        assertEquals(1, clock.getHits());
+    }
+
+    /**
+     * Unit test for the FrameFilter: frames the pool rejects are never chosen.
+     */
+    @Test public void victimsRespectFilter() {
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(4), new TwoQueueEvictionPolicy(4) };
+        for (EvictionPolicy policy : policies) {
+            for (int i = 0; i < 4; i++) {
+                policy.admit(i, page(i));
+            }
+            assertEquals(3, policy.chooseVictim(new EvictionPolicy.FrameFilter() {
+                public boolean accept(int frame) {
+                    return frame == 3;
+                }
+            }));
+            assertEquals(-1, policy.chooseVictim(new EvictionPolicy.FrameFilter() {
+                public boolean accept(int frame) {
+                    return false;
+                }
+            }));
+        }
+    }
+
+    /**
+     * A long sequential scan flushes hot pages out of a CLOCK pool but not out
+     * of a 2Q pool.
+     */
+    /**
+     * A page read again after it was evicted goes to Am, but one read again
+     * after it was discarded starts over in A1in.
+     */
+    @Test public void twoQueueRemembersOnlyEvictedPages() {
+        for (boolean evicted : new boolean[] {true, false}) {
+            TwoQueueEvictionPolicy policy = new TwoQueueEvictionPolicy(4);
+            policy.admit(0, page(0));
+            policy.remove(0, page(0), evicted);
+            policy.admit(0, page(0));
+            for (int i = 1; i < 4; i++) {
+                policy.admit(i, page(i));
+            }
+            // A1in is over its share, so its oldest page goes first
+            assertEquals(evicted ? 1 : 0, policy.chooseVictim(ANY));
+        }
+    }
+
+    @Test public void twoQueueIsScanResistant() {
+        assertEquals(0, hotPagesSurvivingScan(new ClockEvictionPolicy(8), 8));
+        assertEquals(2, hotPagesSurvivingScan(new TwoQueueEvictionPolicy(8), 8));
+    }
+
+    /**
+     * The BufferPool reports hits and misses through its policy.
+     */
+    @Test public void bufferPoolCounters() throws Exception {
+        final int pages = 10;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, tuples);
+        BufferPool pool = Database.resetBufferPool(2 * pages, new TwoQueueEvictionPolicy(2 * pages));
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(pages, pool.getEvictionPolicy().getMisses());
+        long hits = pool.getEvictionPolicy().getHits();
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(pages, pool.getEvictionPolicy().getMisses());
+        assertTrue(pool.getEvictionPolicy().getHits() >= hits + pages);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
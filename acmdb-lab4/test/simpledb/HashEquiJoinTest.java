@@ -8,6 +8,7 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.IOException;
 import java.util.HashMap;
 
@@ -130,6 +131,49 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /** @return the tuples of width 2 whose first fields are keys */
+  private static TupleIterator keyed(int[] keys) {
+    int[] data = new int[keys.length * 2];
+    for (int i = 0; i < keys.length; i++) {
+      data[2 * i] = keys[i];
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Unit test for a join whose left child does not fit in its memory budget
+   */
+  @Test public void spillingJoin() throws Exception {
+    int[] keys1 = new int[400];
+    int[] keys2 = new int[300];
+    for (int i = 0; i < keys1.length; i++) {
+      keys1[i] = i % 150;
+    }
+    for (int i = 0; i < keys2.length; i++) {
+      keys2[i] = i % 200;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, keyed(keys1), keyed(keys2), 128);
+    Join expected = new Join(pred, keyed(keys1), keyed(keys2));
+    assertEquals(TestUtil.countTuples(expected), TestUtil.countTuples(op));
+    assertTrue(op.getSpilledPartitions() > 0);
+    assertTrue(op.getSpilledTuples() > 0);
+    assertTrue(op.getPeakMemoryBytes() <= 128);
+    expected.open();
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+    expected.close();
+
+    // a key too common to fit is joined in memory once the hash runs out
+    int[] same = new int[100];
+    Arrays.fill(same, 7);
+    op = new HashEquiJoin(pred, keyed(same), keyed(keys2), 128);
+    assertEquals(100 * 2, TestUtil.countTuples(op));
+    assertTrue(op.getSpilledPartitions() > 0);
+  }
+
   /**
    * JUnit suite target
    */
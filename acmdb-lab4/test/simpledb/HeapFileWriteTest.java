@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -44,6 +46,49 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go straight to a page with room: pages found full are not
+     * fetched again, and a delete makes its page a target again.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        for (int i = 0; i < 3 * 504; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().flushAllPages();
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        ArrayList<Page> dirty = empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(3, dirty.get(0).getId().pageNumber());
+        assertEquals(1, pool.getCur());
+
+        Tuple victim = Utility.getHeapTuple(0, 2);
+        victim.setRecordId(new RecordId(new HeapPageId(empty.getId(), 1), 0));
+        empty.deleteTuple(tid, victim);
+        dirty = empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(1, dirty.get(0).getId().pageNumber());
+        assertEquals(2, pool.getCur());
+    }
+
+    /**
+     * A page filled by an insert that aborts is offered for inserts again.
+     */
+    @Test public void abortedInsertLeavesRoom() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 503; ++i) {
+            pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        pool.transactionComplete(tid);
+
+        TransactionId aborted = new TransactionId();
+        pool.insertTuple(aborted, empty.getId(), Utility.getHeapTuple(503, 2));
+        pool.transactionComplete(aborted, false);
+
+        ArrayList<Page> dirty = empty.insertTuple(tid, Utility.getHeapTuple(503, 2));
+        assertEquals(0, dirty.get(0).getId().pageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -85,6 +85,26 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * getPageData writes inserted tuples, and tuples changed after being
+     * read, so that a page built from its output holds the same values.
+     */
+    @Test public void getPageDataAfterChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        Tuple first = page.iterator().next();
+        first.setField(1, new IntField(-1));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext()) {
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+        assertEquals(-1, ((IntField) copy.iterator().next().getField(1)).getValue());
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
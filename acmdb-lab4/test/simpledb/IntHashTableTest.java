@@ -0,0 +1,68 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * Keys are numbered in the order they are first added, across growth.
+     */
+    @Test public void numbersKeys() {
+        IntHashTable table = new IntHashTable(1);
+        Random random = new Random(1);
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt(5000) - 2500;
+            if (!expected.containsKey(key)) {
+                expected.put(key, expected.size());
+            }
+            assertEquals((int) expected.get(key), table.add(key));
+        }
+        assertEquals(expected.size(), table.size());
+        for (int key = -3000; key < 3000; key++) {
+            Integer n = expected.get(key);
+            assertEquals(n == null ? -1 : n, table.find(key));
+            if (n != null) {
+                assertEquals(key, table.key(n));
+            }
+        }
+        // keys whose hashes would collide in the low bits alone
+        assertEquals(-1, table.find(1 << 20));
+        assertEquals(table.size(), table.add(1 << 20));
+        assertEquals(table.size() - 1, table.find(1 << 20));
+        assertEquals(table.size(), table.add(2 << 20));
+    }
+
+    /**
+     * Keys and their numbers live in int arrays of at most a few times the
+     * number of keys, whatever order the keys come in.
+     */
+    @Test public void flatFootprint() {
+        final int keys = 200000;
+        IntHashTable table = new IntHashTable(16);
+        int[] counts = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            counts[table.add(i * 7)] = i;
+        }
+        assertEquals(keys, table.size());
+        assertEquals(keys - 1, counts[keys - 1]);
+        // at most 4 slots of 2 ints and 2 numbered keys per key
+        assertTrue(table.sizeBytes() <= 40L * keys);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
@@ -622,4 +622,62 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Range joins of small children, and equality joins of sorted children,
+     * are merged.
+     */
+    @Test
+    public void instantiateJoinTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        DbIterator scan1 = new SeqScan(tid, tableId1, "t1");
+        DbIterator scan2 = new SeqScan(tid, tableId2, "t2");
+        LogicalJoinNode range = new LogicalJoinNode("t1", "t2", "t1.c1", "t2.c2", Predicate.Op.LESS_THAN);
+        LogicalJoinNode equals = new LogicalJoinNode("t1", "t2", "t1.c1", "t2.c2", Predicate.Op.EQUALS);
+        int big = SortMergeJoin.DEFAULT_MAX_TUPLES;
+
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, scan1, scan2, 100, 100) instanceof SortMergeJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, scan1, scan2, big, 100) instanceof Join);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, new OrderBy(1, true, scan1), scan2,
+                big, 100) instanceof SortMergeJoin);
+        // without estimates, range joins are not merged
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(range, scan1, scan2) instanceof Join);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(equals, scan1, scan2, 100, 100) instanceof Join);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(equals, new OrderBy(1, true, scan1),
+                new OrderBy(2, true, scan2), big, big) instanceof SortMergeJoin);
+    }
+
+    /**
+     * The cost of a join follows the operator instantiateJoin picks.
+     */
+    @Test
+    public void mergeJoinCostTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 < t2.c2;"),
+                new Vector<LogicalJoinNode>());
+        LogicalJoinNode range = new LogicalJoinNode("t1", "t2", "t1.c1", "t2.c2", Predicate.Op.LESS_THAN);
+        LogicalJoinNode equals = new LogicalJoinNode("t1", "t2", "t1.c1", "t2.c2", Predicate.Op.EQUALS);
+        // two children that do not fit in SortMergeJoin.DEFAULT_MAX_TUPLES
+        int big = 40000;
+        double nestedLoops = (double) big * big + 1 + big;
+
+        // too big to merge: nested loops
+        Assert.assertEquals(nestedLoops, j.estimateJoinCost(range, big, big, 1, 1), 1);
+        Assert.assertEquals(nestedLoops, j.estimateJoinCost(equals, big, big, 1, 1), 1);
+        // small ranges are sorted and merged
+        Assert.assertTrue(j.estimateJoinCost(range, 100, 100, 1, 1) < 100 * 100);
+        // sorted equalities are only merged
+        double merged = j.estimateJoinCost(equals, big, big, 1, 1, true, true);
+        Assert.assertTrue(merged < nestedLoops / 100);
+        Assert.assertTrue(merged >= 2 * big);
+        // a range whose outer side only fits once it needs no sorting, as
+        // when it comes from a SortMergeJoin lower in the plan
+        int small = SortMergeJoin.DEFAULT_MAX_TUPLES / 2;
+        Assert.assertEquals((double) big * small + 1 + big,
+                j.estimateJoinCost(range, big, small, 1, 1), 1);
+        Assert.assertTrue(j.estimateJoinCost(range, big, small, 1, 1, true, false)
+                < (double) big * small / 2);
+    }
 }
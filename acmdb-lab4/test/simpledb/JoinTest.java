@@ -105,6 +105,21 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() with blocks of two outer tuples, so that
+   * the inner relation is rescanned between blocks
+   */
+  @Test public void gtJoinInBlocks() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 2 * scan1.getTupleDesc().getSize());
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    op.rewind();
+    gtJoin.rewind();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,318 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockingTest extends SimpleDbTestBase {
+    private HeapFile file;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        File file = File.createTempFile("locking", ".dat");
+        file.deleteOnExit();
+        this.file = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        p0 = new HeapPageId(this.file.getId(), 0);
+        p1 = new HeapPageId(this.file.getId(), 1);
+        this.file.writePage(new HeapPage((HeapPageId) p1, HeapPage.createEmptyPageData()));
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Releases both transactions' locks, so no grabber is left blocked.
+     */
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid1);
+        Database.getBufferPool().transactionComplete(tid2);
+    }
+
+    /**
+     * Starts a thread that asks for perm on pid for tid, and checks after a
+     * short wait whether it got the lock.
+     */
+    private TestUtil.LockGrabber grabLock(TransactionId tid, PageId pid, Permissions perm,
+            boolean expected) throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(expected, t.acquired());
+        assertNull(t.getError());
+        return t;
+    }
+
+    /**
+     * Unit test for shared locks held by two transactions on one page.
+     */
+    @Test public void sharedLocks() throws Exception {
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_ONLY);
+        grabLock(tid2, p0, Permissions.READ_ONLY, true);
+        assertTrue(Database.getBufferPool().holdsLock(tid1, p0));
+        assertTrue(Database.getBufferPool().holdsLock(tid2, p0));
+    }
+
+    /**
+     * An exclusive lock waits for shared locks, and is granted once they
+     * are released.
+     */
+    @Test public void exclusiveWaitsForShared() throws Exception {
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber t = grabLock(tid2, p0, Permissions.READ_WRITE, false);
+        Database.getBufferPool().transactionComplete(tid1);
+        t.join();
+        assertTrue(t.acquired());
+        assertFalse(Database.getBufferPool().holdsLock(tid1, p0));
+    }
+
+    /**
+     * Locks on different pages do not conflict.
+     */
+    @Test public void differentPages() throws Exception {
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p1, Permissions.READ_WRITE, true);
+    }
+
+    /**
+     * The only reader of a page may upgrade to an exclusive lock, which
+     * then keeps other readers out.
+     */
+    @Test public void upgrade() throws Exception {
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_ONLY);
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p0, Permissions.READ_ONLY, false);
+    }
+
+    /**
+     * releasePage drops a single lock.
+     */
+    @Test public void releasePage() throws Exception {
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_WRITE);
+        Database.getBufferPool().getPage(tid1, p1, Permissions.READ_WRITE);
+        Database.getBufferPool().releasePage(tid1, p0);
+        assertFalse(Database.getBufferPool().holdsLock(tid1, p0));
+        assertTrue(Database.getBufferPool().holdsLock(tid1, p1));
+        grabLock(tid2, p0, Permissions.READ_WRITE, true);
+    }
+
+    /**
+     * Aborting drops the pages a transaction dirtied, so the next reader
+     * sees the committed version.
+     */
+    @Test public void abortDiscardsChanges() throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid1, p0, Permissions.READ_WRITE);
+        int empty = page.getNumEmptySlots();
+        Database.getBufferPool().insertTuple(tid1, p0.getTableId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid1, false);
+
+        page = (HeapPage) Database.getBufferPool().getPage(tid2, p0, Permissions.READ_ONLY);
+        assertEquals(empty, page.getNumEmptySlots());
+    }
+
+    /**
+     * Two transactions that each wait for a page the other holds form a
+     * cycle; the younger one is aborted and the older one proceeds.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        long before = Database.getBufferPool().getDeadlockCount();
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_WRITE);
+        Database.getBufferPool().getPage(tid2, p1, Permissions.READ_WRITE);
+        TestUtil.LockGrabber older = grabLock(tid1, p1, Permissions.READ_WRITE, false);
+
+        try {
+            Database.getBufferPool().getPage(tid2, p0, Permissions.READ_WRITE);
+            fail("expected the younger transaction to abort");
+        } catch (TransactionAbortedException e) {
+            assertTrue(e.getCause() instanceof DeadlockException);
+        }
+        assertEquals(before + 1, Database.getBufferPool().getDeadlockCount());
+
+        Database.getBufferPool().transactionComplete(tid2, false);
+        older.join();
+        assertTrue(older.acquired());
+        assertTrue(Database.getBufferPool().getLockWaitMillis() >= TIMEOUT);
+    }
+
+    /**
+     * Two readers that both try to upgrade deadlock as well.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        Database.getBufferPool().getPage(tid1, p0, Permissions.READ_ONLY);
+        Database.getBufferPool().getPage(tid2, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber older = grabLock(tid1, p0, Permissions.READ_WRITE, false);
+
+        try {
+            Database.getBufferPool().getPage(tid2, p0, Permissions.READ_WRITE);
+            fail("expected the younger transaction to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid2, false);
+        older.join();
+        assertTrue(older.acquired());
+    }
+
+    /**
+     * A shared table lock lets other readers in but keeps writers out of
+     * every page of the table.
+     */
+    @Test public void tableLock() throws Exception {
+        Database.getBufferPool().lockTable(tid1, p0.getTableId(), Permissions.READ_ONLY);
+        grabLock(tid2, p0, Permissions.READ_ONLY, true);
+        grabLock(tid2, p1, Permissions.READ_WRITE, false);
+    }
+
+    /**
+     * Modes a transaction asks for on one resource are combined.
+     */
+    @Test public void lockModes() {
+        assertEquals(LockManager.Mode.SIX, LockManager.Mode.S.combine(LockManager.Mode.IX));
+        assertEquals(LockManager.Mode.X, LockManager.Mode.IX.combine(LockManager.Mode.X));
+        assertEquals(LockManager.Mode.IX, LockManager.Mode.IS.combine(LockManager.Mode.IX));
+        assertTrue(LockManager.Mode.SIX.compatibleWith(LockManager.Mode.IS));
+        assertFalse(LockManager.Mode.SIX.compatibleWith(LockManager.Mode.IX));
+        assertFalse(LockManager.Mode.S.compatibleWith(LockManager.Mode.IX));
+    }
+
+    /** Runs part of a test on its own thread, keeping its result or exception. */
+    private abstract static class Worker extends Thread {
+        volatile Object result;
+        volatile Exception error;
+
+        abstract Object work() throws Exception;
+
+        public void run() {
+            try {
+                result = work();
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /** Turns on record locking and commits rows 1..n into the file. */
+    private ArrayList<Tuple> insertRows(int n) throws Exception {
+        file.setRecordLocking(true);
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i <= n; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return scanAndCommit(new TransactionId());
+    }
+
+    private ArrayList<Tuple> scan(TransactionId tid) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    private ArrayList<Tuple> scanAndCommit(TransactionId tid) throws Exception {
+        ArrayList<Tuple> tuples = scan(tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+
+    /**
+     * Under record locking, transactions deleting different rows of one
+     * page do not wait for each other, and an aborted delete is undone
+     * without losing the other transaction's committed one.
+     */
+    @Test public void recordLocksOnOnePage() throws Exception {
+        final ArrayList<Tuple> rows = insertRows(2);
+        assertEquals(rows.get(0).getRecordId().getPageId(), rows.get(1).getRecordId().getPageId());
+
+        Database.getBufferPool().deleteTuple(tid1, rows.get(0));
+        Worker other = new Worker() {
+            Object work() throws Exception {
+                Database.getBufferPool().deleteTuple(tid2, rows.get(1));
+                return null;
+            }
+        };
+        other.start();
+        other.join(TIMEOUT * 10);
+        assertFalse(other.isAlive());
+        assertNull(other.error);
+
+        Database.getBufferPool().transactionComplete(tid1, true);
+        Database.getBufferPool().transactionComplete(tid2, false);
+        ArrayList<Tuple> left = scanAndCommit(new TransactionId());
+        assertEquals(1, left.size());
+        assertEquals(rows.get(1).getRecordId(), left.get(0).getRecordId());
+    }
+
+    /**
+     * A deleted row stays invisible to its deleter, and other readers wait
+     * for the delete to commit or abort.
+     */
+    @Test public void ghostBlocksReaders() throws Exception {
+        ArrayList<Tuple> rows = insertRows(2);
+        Database.getBufferPool().deleteTuple(tid1, rows.get(0));
+        assertEquals(1, scan(tid1).size());
+
+        Worker reader = new Worker() {
+            Object work() throws Exception {
+                return scan(tid2);
+            }
+        };
+        reader.start();
+        Thread.sleep(TIMEOUT);
+        assertTrue(reader.isAlive());
+
+        Database.getBufferPool().transactionComplete(tid1, false);
+        reader.join();
+        assertNull(reader.error);
+        assertEquals(2, ((ArrayList<?>) reader.result).size());
+    }
+
+    /**
+     * A full page stays marked full while a delete from it is pending, and
+     * takes inserts again once the delete commits.
+     */
+    @Test public void deleteMakesRoomOnCommit() throws Exception {
+        int slots = BufferPool.getPageSize() * 8 / (file.getTupleDesc().getSize() * 8 + 1);
+        // both pages of the file
+        ArrayList<Tuple> rows = insertRows(2 * slots);
+        assertEquals(2, file.numPages());
+
+        Database.getBufferPool().deleteTuple(tid1, rows.get(0));
+        Tuple t = Utility.getHeapTuple(0, 2);
+        Database.getBufferPool().insertTuple(tid2, file.getId(), t);
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+        Database.getBufferPool().transactionComplete(tid2, true);
+
+        Database.getBufferPool().transactionComplete(tid1, true);
+        TransactionId tid3 = new TransactionId();
+        t = Utility.getHeapTuple(0, 2);
+        Database.getBufferPool().insertTuple(tid3, file.getId(), t);
+        assertEquals(rows.get(0).getRecordId(), t.getRecordId());
+        Database.getBufferPool().transactionComplete(tid3, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
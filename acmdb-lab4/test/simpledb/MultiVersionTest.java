@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MultiVersionTest extends SimpleDbTestBase {
+    private static final int ROWS = 5;
+
+    private File path;
+    private HeapFile file;
+    private HeapPageId p0;
+
+    /**
+     * Creates a multi-version table holding rows 1..ROWS, committed.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        path = File.createTempFile("mvcc", ".dat");
+        path.deleteOnExit();
+        file = Utility.createEmptyHeapFile(path.getAbsolutePath(), 2);
+        file.setMultiVersion(true);
+        p0 = new HeapPageId(file.getId(), 0);
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i <= ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private ArrayList<Tuple> scan(TransactionId tid) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    private int usedSlots() throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(null, p0, Permissions.READ_ONLY);
+        return page.numSlots - page.getNumEmptySlots();
+    }
+
+    /**
+     * A reader neither waits for uncommitted changes nor sees them, and
+     * keeps its snapshot after they commit.
+     */
+    @Test(timeout = 10000) public void readerIgnoresWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        ArrayList<Tuple> rows = scan(writer);
+        Database.getBufferPool().deleteTuple(writer, rows.get(0));
+        Database.getBufferPool().insertTuple(writer, file.getId(), Utility.getHeapTuple(9, 2));
+        assertEquals(ROWS, scan(writer).size());
+        assertEquals(ROWS, scan(reader).size());
+
+        Database.getBufferPool().transactionComplete(writer);
+        ArrayList<Tuple> seen = scan(reader);
+        assertEquals(ROWS, seen.size());
+        assertEquals(rows.get(0).getRecordId(), seen.get(0).getRecordId());
+        Database.getBufferPool().transactionComplete(reader);
+
+        ArrayList<Tuple> after = scan(new TransactionId());
+        assertEquals(ROWS, after.size());
+        assertFalse(after.get(0).getRecordId().equals(rows.get(0).getRecordId()));
+    }
+
+    /**
+     * Writers do not wait for a reader, whose snapshot keeps the rows they
+     * delete.
+     */
+    @Test(timeout = 10000) public void writerIgnoresReader() throws Exception {
+        TransactionId reader = new TransactionId();
+        assertEquals(ROWS, scan(reader).size());
+
+        TransactionId writer = new TransactionId();
+        for (Tuple t : scan(writer)) {
+            Database.getBufferPool().deleteTuple(writer, t);
+        }
+        Database.getBufferPool().transactionComplete(writer);
+
+        assertEquals(ROWS, scan(reader).size());
+        assertEquals(0, scan(new TransactionId()).size());
+    }
+
+    /**
+     * An aborted transaction's inserts and deletes are undone.
+     */
+    @Test public void abortUndoesVersions() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, scan(tid).get(0));
+        Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(9, 2));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        ArrayList<Tuple> rows = scan(new TransactionId());
+        assertEquals(ROWS, rows.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(i + 1, ((IntField) rows.get(i).getField(0)).getValue());
+        }
+    }
+
+    /**
+     * A transaction cannot delete a version that another one deleted after
+     * its snapshot was taken.
+     */
+    @Test public void firstDeleterWins() throws Exception {
+        TransactionId first = new TransactionId();
+        TransactionId second = new TransactionId();
+        Tuple row = scan(second).get(0);
+        Database.getBufferPool().deleteTuple(first, scan(first).get(0));
+        Database.getBufferPool().transactionComplete(first);
+
+        try {
+            Database.getBufferPool().deleteTuple(second, row);
+            fail("expected the second deleter to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(second, false);
+    }
+
+    /**
+     * Stamps are part of the page, so a committed delete stays in effect
+     * once the page is read back from disk.
+     */
+    @Test public void stampsAreStored() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, scan(tid).get(0));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(ROWS - 1, scan(new TransactionId()).size());
+    }
+
+    /**
+     * Transaction ids do not start over on restart, so a new transaction
+     * never takes the id stamped on the versions of an old one.
+     */
+    @Test public void stampsSurviveRestart() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().deleteTuple(tid, scan(tid).get(0));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // a restart starts the counter over and knows no writers; the log
+        // tells it where earlier runs stopped
+        TransactionId.counter.set(0);
+        Database.reset();
+        file = Utility.openHeapFile(2, path);
+        file.setMultiVersion(true);
+        TransactionId writer = new TransactionId();
+        assertTrue(writer.getId() > tid.getId());
+        Database.getBufferPool().insertTuple(writer, file.getId(), Utility.getHeapTuple(9, 2));
+        assertEquals(ROWS - 1, scan(new TransactionId()).size());
+        Database.getBufferPool().transactionComplete(writer);
+        assertEquals(ROWS, scan(new TransactionId()).size());
+    }
+
+    /**
+     * Deleted versions are kept while a snapshot sees them, and vacuumed
+     * in the background once it ends.
+     */
+    @Test(timeout = 10000) public void vacuumFreesDeadVersions() throws Exception {
+        TransactionId reader = new TransactionId();
+        assertEquals(ROWS, scan(reader).size());
+        TransactionId writer = new TransactionId();
+        for (Tuple t : scan(writer)) {
+            Database.getBufferPool().deleteTuple(writer, t);
+        }
+        Database.getBufferPool().transactionComplete(writer);
+
+        assertEquals(0, Database.getBufferPool().vacuum());
+        assertEquals(ROWS, usedSlots());
+        assertEquals(ROWS, scan(reader).size());
+
+        Database.getBufferPool().transactionComplete(reader);
+        while (usedSlots() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Starting a transaction takes no snapshot, so one that never reads a
+     * multi-version table does not keep versions from vacuum.
+     */
+    @Test(timeout = 10000) public void idleTransactionKeepsNoVersions() throws Exception {
+        Transaction idle = new Transaction();
+        idle.start();
+        TransactionId writer = new TransactionId();
+        for (Tuple t : scan(writer)) {
+            Database.getBufferPool().deleteTuple(writer, t);
+        }
+        Database.getBufferPool().transactionComplete(writer);
+        // the run the commit starts may find the writer's locks still held
+        while (usedSlots() > 0) {
+            Database.getBufferPool().vacuum();
+            Thread.sleep(10);
+        }
+        idle.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiVersionTest.class);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageLatchesTest extends SimpleDbTestBase {
+
+    private static PageId page(int i) {
+        return new BTreePageId(1, i, BTreePageId.LEAF);
+    }
+
+    /**
+     * Latches are dropped once no operation holds them, so latching every
+     * page of a tree does not keep a latch for each.
+     */
+    @Test public void unusedLatchesAreDropped() {
+        PageLatches latches = new PageLatches();
+        PageLatches.Held held = latches.newHeld();
+        for (int i = 0; i < 100; i++) {
+            held.crab(page(i), i % 2 == 0);
+        }
+        assertEquals(1, latches.size());
+        PageLatches.Held other = latches.newHeld();
+        other.latch(page(99), false);
+        held.releaseAll();
+        assertEquals(1, latches.size());
+        other.releaseAll();
+        assertEquals(0, latches.size());
+    }
+
+    /**
+     * A latch that is being waited for stays, so the waiter and the next
+     * operation exclude each other.
+     */
+    @Test(timeout = 10000) public void waitersKeepTheLatch() throws Exception {
+        final PageLatches latches = new PageLatches();
+        PageLatches.Held held = latches.newHeld();
+        held.latch(page(0), true);
+        final CountDownLatch latched = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                PageLatches.Held mine = latches.newHeld();
+                mine.latch(page(0), true);
+                latched.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    // release below
+                }
+                mine.releaseAll();
+            }
+        };
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        held.releaseAll();
+        latched.await();
+        assertEquals(1, latches.size());
+
+        // the waiter now holds the latch it waited for, not a dropped one
+        PageLatches.Held next = latches.newHeld();
+        done.countDown();
+        next.latch(page(0), true);
+        waiter.join();
+        next.releaseAll();
+        assertEquals(0, latches.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLatchesTest.class);
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PagedFileTest extends SimpleDbTestBase {
+
+    private static PagedFile tempFile() throws Exception {
+        File f = File.createTempFile("paged", ".dat");
+        f.deleteOnExit();
+        return new PagedFile(f);
+    }
+
+    private static byte[] filled(int len, int value) {
+        byte[] b = new byte[len];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    /**
+     * Unit test for positional reads and writes, including short reads at
+     * the end of the file.
+     */
+    @Test public void readWrite() throws Exception {
+        PagedFile pf = tempFile();
+        assertEquals(0, pf.size());
+        pf.write(100, filled(50, 7));
+        assertEquals(150, pf.size());
+        assertEquals(150, pf.getFile().length());
+
+        byte[] buf = new byte[50];
+        assertEquals(50, pf.read(100, buf));
+        assertArrayEquals(filled(50, 7), buf);
+        assertEquals(20, pf.read(130, buf));
+        assertEquals(0, pf.read(150, buf));
+
+        assertEquals(150, pf.append(filled(10, 3)));
+        assertEquals(160, pf.size());
+    }
+
+    /**
+     * The cached size only changes through this PagedFile until refreshSize.
+     */
+    @Test public void cachedSize() throws Exception {
+        PagedFile pf = tempFile();
+        pf.write(0, filled(10, 1));
+        FileOutputStream out = new FileOutputStream(pf.getFile(), true);
+        out.write(filled(10, 2));
+        out.close();
+        assertEquals(10, pf.size());
+        assertEquals(20, pf.refreshSize());
+        assertEquals(20, pf.size());
+    }
+
+    /**
+     * Files whose channels were closed to stay under the open file limit are
+     * reopened on their next use.
+     */
+    @Test public void reopenAfterClose() throws Exception {
+        ArrayList<PagedFile> files = new ArrayList<PagedFile>();
+        for (int i = 0; i < PagedFile.MAX_OPEN_FILES + 10; i++) {
+            PagedFile pf = tempFile();
+            pf.write(0, filled(4, i));
+            files.add(pf);
+        }
+        for (int i = 0; i < files.size(); i++) {
+            byte[] buf = new byte[4];
+            assertEquals(4, files.get(i).read(0, buf));
+            assertArrayEquals(filled(4, i), buf);
+        }
+    }
+
+    /**
+     * Reopening a closed channel picks up what was appended to the file
+     * while it was closed.
+     */
+    @Test public void sizeAfterReopen() throws Exception {
+        PagedFile pf = tempFile();
+        pf.write(0, filled(10, 1));
+        FileOutputStream out = new FileOutputStream(pf.getFile(), true);
+        out.write(filled(10, 2));
+        out.close();
+        // pf is the least recently used, so its channel is closed first
+        for (int i = 0; i < PagedFile.MAX_OPEN_FILES; i++) {
+            tempFile().write(0, filled(4, i));
+        }
+        byte[] buf = new byte[10];
+        assertEquals(10, pf.read(10, buf));
+        assertArrayEquals(filled(10, 2), buf);
+        assertEquals(20, pf.size());
+    }
+
+    /**
+     * Mapped regions see writes made through the channel, and a read past
+     * the end of the mapping after the file grew remaps it.
+     */
+    @Test public void mappedReads() throws Exception {
+        PagedFile pf = tempFile();
+        pf.write(0, filled(16, 1));
+        assertNull(pf.mapped(0, 16));
+
+        pf.setMemoryMapped(true);
+        ByteBuffer region = pf.mapped(8, 8);
+        assertEquals(8, region.remaining());
+        assertEquals(1, region.get(0));
+
+        pf.write(8, filled(8, 2));
+        assertEquals(2, region.get(0));
+
+        assertNull(pf.mapped(16, 8));
+        pf.write(16, filled(8, 3));
+        region = pf.mapped(16, 8);
+        assertNotNull(region);
+        assertEquals(3, region.get(7));
+
+        pf.setMemoryMapped(false);
+        assertNull(pf.mapped(0, 8));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagedFileTest.class);
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  // both children are out of order and have duplicate keys
+  int[] data1 = new int[] { 5, 6,
+                            1, 2,
+                            7, 8,
+                            3, 4,
+                            5, 9 };
+  int[] data2 = new int[] { 4, 5, 6,
+                            2, 3, 4,
+                            5, 6, 7,
+                            1, 2, 3,
+                            3, 4, 5,
+                            5, 0, 0 };
+  DbIterator scan1;
+  DbIterator scan2;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1, data1);
+    this.scan2 = TestUtil.createTupleList(width2, data2);
+  }
+
+  /**
+   * @return a nested-loop join of copies of the children, which evaluates
+   *         the predicate on every pair
+   */
+  private DbIterator expected(Predicate.Op op) throws Exception {
+    return new Join(new JoinPredicate(0, op, 0), TestUtil.createTupleList(width1, data1),
+        TestUtil.createTupleList(width2, data2));
+  }
+
+  private void checkJoin(Predicate.Op op) throws Exception {
+    SortMergeJoin op1 = new SortMergeJoin(new JoinPredicate(0, op, 0), scan1, scan2);
+    op1.open();
+    DbIterator nl = expected(op);
+    nl.open();
+    TestUtil.matchAllTuples(nl, op1);
+    // and again, in the same order
+    op1.rewind();
+    Tuple last = null;
+    int n = 0;
+    while (op1.hasNext()) {
+      Tuple t = op1.next();
+      if (last != null) {
+        assertFalse(((IntField) t.getField(0)).getValue() < ((IntField) last.getField(0)).getValue());
+      }
+      last = t;
+      n++;
+    }
+    nl.rewind();
+    int m = 0;
+    while (nl.hasNext()) {
+      nl.next();
+      m++;
+    }
+    assertEquals(m, n);
+  }
+
+  @Test public void eqJoin() throws Exception {
+    checkJoin(Predicate.Op.EQUALS);
+  }
+
+  @Test public void ltJoin() throws Exception {
+    checkJoin(Predicate.Op.LESS_THAN);
+  }
+
+  @Test public void leJoin() throws Exception {
+    checkJoin(Predicate.Op.LESS_THAN_OR_EQ);
+  }
+
+  @Test public void gtJoin() throws Exception {
+    checkJoin(Predicate.Op.GREATER_THAN);
+  }
+
+  @Test public void geJoin() throws Exception {
+    checkJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for SortMergeJoin over children that are sorted already
+   */
+  @Test public void sortedChildren() throws Exception {
+    DbIterator sorted1 = new OrderBy(0, true, scan1);
+    DbIterator sorted2 = new OrderBy(0, true, scan2);
+    assertTrue(SortMergeJoin.isSortedOn(sorted1, 0));
+    assertFalse(SortMergeJoin.isSortedOn(sorted1, 1));
+    assertFalse(SortMergeJoin.isSortedOn(scan1, 0));
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), sorted1, sorted2);
+    assertTrue(SortMergeJoin.isSortedOn(op, 0));
+    op.open();
+    DbIterator nl = expected(Predicate.Op.EQUALS);
+    nl.open();
+    TestUtil.matchAllTuples(nl, op);
+    op.rewind();
+    nl.rewind();
+    TestUtil.matchAllTuples(nl, op);
+    // only the inner tuples of one key are kept: the two with key 5
+    assertEquals(2, op.getPeakTuples());
+  }
+
+  /**
+   * Unsorted children are kept in memory to be sorted
+   */
+  @Test public void peakTuples() throws Exception {
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    assertEquals(data1.length / width1 + data2.length / width2, op.getPeakTuples());
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void notEqualsJoin() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
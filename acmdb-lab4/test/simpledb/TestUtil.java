@@ -166,6 +166,23 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Opens the DbIterator, counts the tuples it returns and closes it.
+     * @return the number of tuples
+     */
+    public static int countTuples(DbIterator it)
+        throws TransactionAbortedException, DbException {
+
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -0,0 +1,139 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Inserts disjoint key ranges into one B+ tree from several threads, then
+ * deletes half of each range again, so that leaf and internal pages split
+ * and merge while other threads search and change the tree.  Aborted
+ * transactions retry, and the tree must end up consistent and holding
+ * exactly the committed tuples.
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 1500;
+    private static final int KEYS_PER_TRANSACTION = 50;
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    /** A step of work on one thread's keys, run in its own transaction. */
+    private interface Step {
+        void run(TransactionId tid, int from, int to) throws Exception;
+    }
+
+    /** Runs step over each thread's keys, KEYS_PER_TRANSACTION at a time, retrying aborts. */
+    private static void runThreads(final Step step) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int first = i * KEYS_PER_THREAD;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Random random = new Random();
+                        barrier.await();
+                        int from = first;
+                        while (from < first + KEYS_PER_THREAD) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                step.run(t.getId(), from, from + KEYS_PER_TRANSACTION);
+                                t.commit();
+                                from += KEYS_PER_TRANSACTION;
+                            } catch (TransactionAbortedException e) {
+                                t.abort();
+                                // back off so the winner can finish
+                                Thread.sleep(random.nextInt(5));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join(120000);
+            assertFalse("transactions did not finish", t.isAlive());
+        }
+        assertNull(error.get());
+    }
+
+    private static ArrayList<Tuple> scan(TransactionId tid, BTreeFile f) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    /** Looks key up through the index; deletes may move the other tuples. */
+    private static Tuple find(TransactionId tid, BTreeFile f, int key) throws Exception {
+        DbFileIterator it = f.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    @Test public void testDisjointInsertsAndDeletes() throws Exception {
+        // small pages, so that internal pages split and merge too
+        BufferPool.setPageSize(1024);
+        Database.resetBufferPool(500);
+        File file = File.createTempFile("btree", ".dat");
+        file.deleteOnExit();
+        final BTreeFile f = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+
+        runThreads(new Step() {
+            public void run(TransactionId tid, int from, int to) throws Exception {
+                for (int key = from; key < to; key++) {
+                    Database.getBufferPool().insertTuple(tid, f.getId(),
+                            BTreeUtility.getBTreeTuple(new int[] {key, key}));
+                }
+            }
+        });
+        // delete the even keys
+        runThreads(new Step() {
+            public void run(TransactionId tid, int from, int to) throws Exception {
+                for (int key = from; key < to; key += 2) {
+                    Database.getBufferPool().deleteTuple(tid, find(tid, f, key));
+                }
+            }
+        });
+
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+        ArrayList<Tuple> tuples = scan(tid, f);
+        assertEquals(THREADS * KEYS_PER_THREAD / 2, tuples.size());
+        for (int i = 0; i < tuples.size(); i++) {
+            assertEquals(2 * i + 1, ((IntField) tuples.get(i).getField(0)).getValue());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeConcurrencyTest.class);
+    }
+}
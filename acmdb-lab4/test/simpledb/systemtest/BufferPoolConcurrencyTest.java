@@ -0,0 +1,147 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Exercises BufferPool.getPage from many threads at once: concurrent misses on
+ * one page must share a single read, and concurrent scans of a cached table
+ * must all be served from the pool.
+ */
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    static final int PAGES = 40;
+    static final int SCANS_PER_THREAD = 20;
+
+    /** Counts readPage calls and optionally makes each one slow. */
+    static class InstrumentedHeapFile extends HeapFile {
+        final AtomicInteger readCount = new AtomicInteger(0);
+        volatile long readDelayMillis = 0;
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount.incrementAndGet();
+            if (readDelayMillis > 0) {
+                try {
+                    Thread.sleep(readDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    static InstrumentedHeapFile createTable(ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /** Threads that miss on the same page at the same time share one disk read. */
+    @Test public void testSingleFlightLoad() throws Exception {
+        final InstrumentedHeapFile table = createTable(new ArrayList<ArrayList<Integer>>());
+        table.readDelayMillis = 200;
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final PageId pid = new HeapPageId(table.getId(), 0);
+        final Page[] seen = new Page[threads];
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        seen[id] = Database.getBufferPool().getPage(new TransactionId(), pid,
+                                Permissions.READ_ONLY);
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        assertNull(error.get());
+        assertEquals(1, table.readCount.get());
+        for (Page p : seen) {
+            assertSame(seen[0], p);
+        }
+    }
+
+    /**
+     * Scans a table that fits in the pool from several threads at once.
+     * Every scan must see every tuple, and no scan after the warm-up may go
+     * to disk or take another frame.
+     */
+    @Test public void testConcurrentCachedScans() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        final InstrumentedHeapFile table = createTable(tuples);
+        final int expected = tuples.size();
+        BufferPool pool = Database.resetBufferPool(PAGES * 2);
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(PAGES, table.readCount.get());
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[8];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int s = 0; s < SCANS_PER_THREAD; s++) {
+                            assertEquals(expected, scan(table));
+                        }
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertNull(error.get());
+        assertEquals(PAGES, table.readCount.get());
+        assertEquals(PAGES, pool.getCur());
+    }
+
+    static int scan(DbFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
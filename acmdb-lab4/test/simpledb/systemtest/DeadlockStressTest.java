@@ -0,0 +1,126 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs transactions from several threads that each increment a counter in
+ * two tables, half of them in one order and half in the other, so they
+ * deadlock both on the crossing order and on shared-to-exclusive upgrades.
+ * Deadlocks must be broken by aborting a transaction, which then retries,
+ * and every committed increment must show up in both tables.
+ */
+public class DeadlockStressTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 20;
+
+    private static HeapFile createCounter() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, tuples);
+        // start both counters from zero
+        Transaction t = new Transaction();
+        t.start();
+        Tuple old = readCounter(t.getId(), f);
+        Database.getBufferPool().deleteTuple(t.getId(), old);
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), counter(f, 0));
+        t.commit();
+        return f;
+    }
+
+    private static Tuple counter(HeapFile f, int value) {
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(value));
+        t.setField(1, new IntField(0));
+        return t;
+    }
+
+    private static Tuple readCounter(TransactionId tid, HeapFile f) throws Exception {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        Tuple t = scan.next();
+        assertFalse(scan.hasNext());
+        scan.close();
+        return t;
+    }
+
+    /** Reads the counter under a shared lock, then replaces it with value + 1. */
+    private static void increment(TransactionId tid, HeapFile f) throws Exception {
+        Tuple old = readCounter(tid, f);
+        // give other transactions a chance to read it too
+        Thread.yield();
+        int value = ((IntField) old.getField(0)).getValue();
+        Database.getBufferPool().deleteTuple(tid, old);
+        Database.getBufferPool().insertTuple(tid, f.getId(), counter(f, value + 1));
+    }
+
+    @Test public void testCrossingUpdates() throws Exception {
+        final HeapFile a = createCounter();
+        final HeapFile b = createCounter();
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final AtomicInteger aborts = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        long deadlocksBefore = Database.getBufferPool().getDeadlockCount();
+
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final HeapFile first = i % 2 == 0 ? a : b;
+            final HeapFile second = i % 2 == 0 ? b : a;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Random random = new Random();
+                        barrier.await();
+                        int commits = 0;
+                        while (commits < COMMITS_PER_THREAD) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                increment(t.getId(), first);
+                                increment(t.getId(), second);
+                                t.commit();
+                                commits++;
+                            } catch (TransactionAbortedException e) {
+                                aborts.incrementAndGet();
+                                t.abort();
+                                // back off so the winner can finish
+                                Thread.sleep(random.nextInt(5));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join(60000);
+            assertFalse("transactions did not finish", t.isAlive());
+        }
+        assertNull(error.get());
+
+        TransactionId tid = new TransactionId();
+        int expected = THREADS * COMMITS_PER_THREAD;
+        assertEquals(expected, ((IntField) readCounter(tid, a).getField(0)).getValue());
+        assertEquals(expected, ((IntField) readCounter(tid, b).getField(0)).getValue());
+        Database.getBufferPool().transactionComplete(tid);
+
+        long deadlocks = Database.getBufferPool().getDeadlockCount() - deadlocksBefore;
+        // every abort here comes from a deadlock
+        assertEquals(aborts.get(), deadlocks);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(DeadlockStressTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Commits small transactions from 1, 4 and 16 clients, each inserting into
+ * a table of its own so that they never wait for each other's locks, and
+ * checks that no commit takes more than one force of the log, and that a
+ * lone client takes exactly one.  Every commit must show up.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    static final int MAX_CLIENTS = 16;
+    private static final int COMMITS_PER_CLIENT = 20;
+
+    /**
+     * Commits one insert per transaction into each client's table, until
+     * runMillis have passed or, if runMillis is 0, commitsPerClient times.
+     * @return the number of commits of each client
+     */
+    static int[] runClients(final HeapFile[] tables, int clients, final long runMillis,
+            final int commitsPerClient) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(clients);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final int[] commits = new int[clients];
+        final long end = System.currentTimeMillis() + runMillis;
+
+        Thread[] workers = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        while (runMillis > 0 ? System.currentTimeMillis() < end
+                                : commits[client] < commitsPerClient) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            Database.getBufferPool().insertTuple(t.getId(), tables[client].getId(),
+                                    Utility.getHeapTuple(commits[client], 2));
+                            t.commit();
+                            commits[client]++;
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join(60000);
+            assertFalse("transactions did not finish", t.isAlive());
+        }
+        assertNull(error.get());
+        return commits;
+    }
+
+    @Test public void testCommitsPerForce() throws Exception {
+        HeapFile[] tables = new HeapFile[MAX_CLIENTS];
+        for (int i = 0; i < MAX_CLIENTS; i++) {
+            tables[i] = SystemTestUtil.createRandomHeapFile(2, 0, null, new ArrayList<ArrayList<Integer>>());
+        }
+        for (int clients = 1; clients <= MAX_CLIENTS; clients *= 4) {
+            int[] before = new int[clients];
+            for (int i = 0; i < clients; i++) {
+                before[i] = SystemTestUtil.countTuples(tables[i]);
+            }
+            long forcesBefore = Database.getLogFile().getGroupForces();
+            int[] commits = runClients(tables, clients, 0, COMMITS_PER_CLIENT);
+            long forces = Database.getLogFile().getGroupForces() - forcesBefore;
+
+            int total = 0;
+            for (int i = 0; i < clients; i++) {
+                assertEquals(before[i] + commits[i], SystemTestUtil.countTuples(tables[i]));
+                total += commits[i];
+            }
+            assertEquals(clients * COMMITS_PER_CLIENT, total);
+            if (clients == 1) {
+                // nothing to share a force with
+                assertEquals(total, forces);
+            } else {
+                assertTrue(forces > 0 && forces <= total);
+            }
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
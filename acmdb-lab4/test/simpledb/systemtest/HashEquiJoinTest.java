@@ -1,5 +1,7 @@
 package simpledb.systemtest;
 
+import static org.junit.Assert.*;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -69,8 +71,75 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Joins two tables with the left one in memory and with a budget an
+     * eighth of its size, which must spill at least the left tuples that do
+     * not fit.
+     */
+    @Test public void testSpilling() throws Exception {
+        final int rows = 50000;
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, rows, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, rows, null,
+                new ArrayList<ArrayList<Integer>>());
+        int budget = rows * table1.getTupleDesc().getSize() / 8;
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        HashEquiJoin inMemory = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        int expected = TestUtil.countTuples(inMemory);
+        assertEquals(0, inMemory.getSpilledPartitions());
+        assertEquals(0, inMemory.getSpilledTuples());
+
+        HashEquiJoin spilling = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), budget);
+        assertEquals(expected, TestUtil.countTuples(spilling));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(spilling.getSpilledPartitions() > 0);
+        assertTrue(spilling.getSpilledTuples() >= rows - budget / table1.getTupleDesc().getSize());
+        assertTrue(spilling.getPeakMemoryBytes() <= budget);
+    }
+
+    /**
+     * Joins a dimension table to a fact table whose keys match it 1% of the
+     * time, with the fact table scanned directly, where the join pushes a
+     * Bloom filter of the dimension keys into the scan, and through a
+     * projection, where it cannot.  The filter must reject nearly all the
+     * fact tuples that cannot match.
+     */
+    @Test public void testKeyFilterPushdown() throws Exception {
+        final int facts = 200000;
+        HeapFile dimension = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(COLUMNS, facts, 10000, null,
+                new ArrayList<ArrayList<Integer>>());
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < COLUMNS; i++) {
+            fields.add(i);
+        }
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+
+        HashEquiJoin unfiltered = new HashEquiJoin(p, new SeqScan(tid, dimension.getId(), ""),
+                new Project(fields, types, new SeqScan(tid, fact.getId(), "")));
+        int expected = TestUtil.countTuples(unfiltered);
+        assertEquals(0, unfiltered.getProbeTuplesSkipped());
+
+        HashEquiJoin filtered = new HashEquiJoin(p, new SeqScan(tid, dimension.getId(), ""),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                        new SeqScan(tid, fact.getId(), "")));
+        assertEquals(expected, TestUtil.countTuples(filtered));
+        Database.getBufferPool().transactionComplete(tid);
+        // no more than a few percent of the tuples that cannot match get through
+        assertTrue(filtered.getProbeTuplesSkipped() > (facts - expected) * 9 / 10);
+        // the filter is sized for the one page of dimension keys, not the budget
+        assertTrue(filtered.getPeakMemoryBytes() - unfiltered.getPeakMemoryBytes() <= 2048);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
-        return new junit.framework.JUnit4TestAdapter(JoinTest.class);
+        return new junit.framework.JUnit4TestAdapter(HashEquiJoinTest.class);
     }
 }
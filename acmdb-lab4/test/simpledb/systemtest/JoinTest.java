@@ -1,5 +1,7 @@
 package simpledb.systemtest;
 
+import static org.junit.Assert.*;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -70,6 +72,59 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /** A SeqScan that counts how often it is rewound. */
+    private static class CountingScan extends SeqScan {
+        int rewinds;
+
+        CountingScan(TransactionId tid, int tableId) {
+            super(tid, tableId, "");
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            rewinds++;
+            super.rewind();
+        }
+    }
+
+    /**
+     * Joins two tables that do not fit in the buffer pool on a non-equi
+     * predicate one outer tuple at a time, in blocks of outer tuples, and by
+     * sorting and merging them.  The inner table is rescanned once per block
+     * after the first, and the merge keeps both tables in memory.
+     */
+    @Test public void testBlockNestedLoopRescans()
+            throws IOException, DbException, TransactionAbortedException {
+        final int rows = 2000;
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, null, new ArrayList<ArrayList<Integer>>());
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, null, new ArrayList<ArrayList<Integer>>());
+        Database.resetBufferPool(2);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        TransactionId tid = new TransactionId();
+
+        int tupleBytes = table1.getTupleDesc().getSize();
+        CountingScan inner = new CountingScan(tid, table2.getId());
+        int expected = TestUtil.countTuples(new Join(p, new SeqScan(tid, table1.getId(), ""), inner,
+                tupleBytes));
+        assertEquals(rows - 1, inner.rewinds);
+
+        inner = new CountingScan(tid, table2.getId());
+        assertEquals(expected, TestUtil.countTuples(new Join(p, new SeqScan(tid, table1.getId(), ""), inner,
+                tupleBytes * rows / 4)));
+        assertEquals(3, inner.rewinds);
+
+        inner = new CountingScan(tid, table2.getId());
+        assertEquals(expected, TestUtil.countTuples(new Join(p, new SeqScan(tid, table1.getId(), ""),
+                inner)));
+        assertEquals(0, inner.rewinds);
+
+        SortMergeJoin merged = new SortMergeJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""));
+        assertEquals(expected, TestUtil.countTuples(merged));
+        assertEquals(2 * rows, merged.getPeakTuples());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -0,0 +1,340 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Commits, aborts and crashes transactions that change a heap file and a
+ * B+ tree, with pages staying in the buffer pool past commit and written
+ * out before it, and checks what the tables hold after rollback and
+ * recovery.
+ */
+public class LogTest extends SimpleDbTestBase {
+    private File heapPath;
+    private File btreePath;
+    private HeapFile hf;
+    private BTreeFile bf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        heapPath = File.createTempFile("log", ".dat");
+        heapPath.deleteOnExit();
+        btreePath = File.createTempFile("logbtree", ".dat");
+        btreePath.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(heapPath.getAbsolutePath(), 2);
+        bf = BTreeUtility.createEmptyBTreeFile(btreePath.getAbsolutePath(), 2, 0);
+    }
+
+    /** Loses the buffer pool and the catalog, as a crash would, and recovers. */
+    private void crashAndRecover() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, heapPath);
+        bf = BTreeUtility.openBTreeFile(2, btreePath, 0);
+        Database.getLogFile().recover();
+    }
+
+    private static void insert(Transaction t, DbFile f, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    private static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    /** @return the first fields of the tuples of f, through the buffer pool */
+    private static Set<Integer> scan(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        Set<Integer> values = new HashSet<Integer>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /** @return the first fields of the tuples of hf, as on disk */
+    private Set<Integer> onDisk() throws Exception {
+        Set<Integer> values = new HashSet<Integer>();
+        for (int p = 0; p < hf.numPages(); p++) {
+            Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), p))).iterator();
+            while (it.hasNext()) {
+                values.add(((IntField) it.next().getField(0)).getValue());
+            }
+        }
+        return values;
+    }
+
+    @Test public void testCommitIsNotForced() throws Exception {
+        Transaction t = begin();
+        insert(t, hf, 1);
+        t.commit();
+        assertFalse(onDisk().contains(1));
+        assertTrue(scan(hf).contains(1));
+
+        crashAndRecover();
+        assertTrue(onDisk().contains(1));
+        assertTrue(scan(hf).contains(1));
+    }
+
+    @Test public void testCrashUndoesStolenChanges() throws Exception {
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        t1.commit();
+        Transaction t2 = begin();
+        insert(t2, hf, 2);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(onDisk().contains(2));
+
+        crashAndRecover();
+        assertEquals(1, scan(hf).size());
+        assertTrue(scan(hf).contains(1));
+    }
+
+    @Test public void testAbortUndoesStolenChanges() throws Exception {
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        t1.commit();
+        Transaction t2 = begin();
+        insert(t2, hf, 2);
+        Database.getBufferPool().flushAllPages();
+        t2.abort();
+        assertEquals(1, scan(hf).size());
+
+        crashAndRecover();
+        assertEquals(1, scan(hf).size());
+        assertTrue(scan(hf).contains(1));
+    }
+
+    @Test public void testRecoverFromCheckpoint() throws Exception {
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        insert(t1, bf, 1);
+        t1.commit();
+        Transaction t2 = begin();
+        insert(t2, hf, 2);
+        Database.getLogFile().logCheckpoint();
+        Transaction t3 = begin();
+        insert(t3, bf, 3);
+        t3.commit();
+        Transaction t4 = begin();
+        insert(t4, bf, 4);
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        // recovering again must not change anything
+        crashAndRecover();
+        assertEquals(1, scan(hf).size());
+        assertTrue(scan(hf).contains(1));
+        assertEquals(2, scan(bf).size());
+        assertTrue(scan(bf).contains(1));
+        assertTrue(scan(bf).contains(3));
+    }
+
+    /** @return page 0 of hf, as cached by the buffer pool */
+    private HeapPage firstPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        Page p = Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        return (HeapPage) p;
+    }
+
+    @Test public void testPagesCarryTheirLSN() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        t1.commit();
+        HeapPage page = firstPage();
+        long committed = page.getLSN();
+        assertTrue(committed > 0);
+        assertTrue(log.getFlushedLSN() >= committed);
+
+        // a page stolen from a running transaction is logged again, and
+        // the log is on disk up to it before the page is
+        Transaction t2 = begin();
+        insert(t2, hf, 2);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(page.getLSN() > committed);
+        assertTrue(log.getFlushedLSN() >= page.getLSN());
+        assertTrue(onDisk().contains(2));
+        t2.commit();
+
+        // truncating the log keeps LSNs growing
+        long flushed = log.getFlushedLSN();
+        log.logCheckpoint();
+        assertTrue(log.getFlushedLSN() >= flushed);
+        Transaction t3 = begin();
+        insert(t3, hf, 3);
+        t3.commit();
+        assertTrue(firstPage().getLSN() > flushed);
+
+        crashAndRecover();
+        assertEquals(3, scan(hf).size());
+    }
+
+    @Test public void testDeltaRecords() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        t1.commit();
+        long lsn = log.getFlushedLSN();
+
+        // later changes to the page log only the bytes that changed
+        for (int i = 2; i <= 10; i++) {
+            Transaction t = begin();
+            insert(t, hf, i);
+            t.commit();
+        }
+        assertTrue(log.getFlushedLSN() - lsn < BufferPool.getPageSize());
+
+        Transaction t2 = begin();
+        insert(t2, hf, 11);
+        Database.getBufferPool().flushAllPages();
+        Transaction t3 = begin();
+        insert(t3, bf, 3);
+        t3.abort();
+        Transaction t4 = begin();
+        insert(t4, bf, 4);
+        t4.commit();
+        Transaction t5 = begin();
+        insert(t5, bf, 5);
+        t5.commit();
+
+        crashAndRecover();
+        Set<Integer> values = scan(hf);
+        assertEquals(10, values.size());
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(values.contains(i));
+        }
+        assertEquals(2, scan(bf).size());
+    }
+
+    @Test public void testDeltaAfterRollback() throws Exception {
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        t1.commit();
+        Transaction t2 = begin();
+        insert(t2, hf, 2);
+        Database.getBufferPool().flushAllPages();
+        t2.abort();
+
+        // t3 takes the slot t2 had; its records must not depend on what t2 logged
+        Transaction t3 = begin();
+        insert(t3, hf, 3);
+        t3.commit();
+        Transaction t4 = begin();
+        insert(t4, hf, 4);
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        Set<Integer> values = scan(hf);
+        assertEquals(2, values.size());
+        assertTrue(values.contains(1));
+        assertTrue(values.contains(3));
+    }
+
+    @Test public void testDeltaAfterFlush() throws Exception {
+        Transaction t1 = begin();
+        for (int i = 10; i < 18; i++) {
+            insert(t1, hf, i);
+        }
+        t1.commit();
+
+        // t2 puts back bytes of the page that were written out while it
+        // ran; its commit must put them back on disk too
+        Transaction t2 = begin();
+        Tuple two = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(t2.getId(), hf.getId(), two);
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().deleteTuple(t2.getId(), two);
+        t2.commit();
+
+        crashAndRecover();
+        Set<Integer> values = scan(hf);
+        assertEquals(8, values.size());
+        assertFalse(values.contains(2));
+    }
+
+    /** @return the tuple of hf whose first field is value */
+    private Tuple find(int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple tuple = it.next();
+                if (((IntField) tuple.getField(0)).getValue() == value) {
+                    return tuple;
+                }
+            }
+        } finally {
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        throw new AssertionError("no tuple " + value);
+    }
+
+    @Test public void testTwoWritersOnOnePage() throws Exception {
+        hf.setRecordLocking(true);
+        Transaction t0 = begin();
+        insert(t0, hf, 0);
+        insert(t0, hf, 5);
+        t0.commit();
+        Tuple zero = find(0);
+        Tuple five = find(5);
+
+        // record locks let t1 and t2 change the same page at once; the
+        // commit of t1 and the checkpoint must not make t2's changes stick
+        Transaction t1 = begin();
+        insert(t1, hf, 1);
+        Transaction t2 = begin();
+        insert(t2, hf, 2);
+        Database.getBufferPool().deleteTuple(t2.getId(), zero);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        Transaction t3 = begin();
+        insert(t3, hf, 3);
+        Database.getBufferPool().deleteTuple(t3.getId(), five);
+        t3.commit();
+        Transaction t4 = begin();
+        insert(t4, hf, 4);
+        t4.abort();
+        assertTrue(onDisk().contains(2));
+
+        crashAndRecover();
+        crashAndRecover();
+        hf.setRecordLocking(true);
+        Set<Integer> values = scan(hf);
+        assertEquals(3, values.size());
+        assertTrue(values.contains(0));
+        assertTrue(values.contains(1));
+        assertTrue(values.contains(3));
+
+        // the slots the losers left are free again
+        Transaction t5 = begin();
+        for (int i = 10; i < 12; i++) {
+            insert(t5, hf, i);
+        }
+        t5.commit();
+        assertEquals(5, scan(hf).size());
+        assertEquals(1, hf.numPages());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogTest.class);
+    }
+}
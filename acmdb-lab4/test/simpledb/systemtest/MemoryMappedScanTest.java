@@ -0,0 +1,62 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Scans heap files and B+ trees with memory-mapped reads turned on,
+ * including after the files have grown through the normal write path.
+ */
+public class MemoryMappedScanTest extends SimpleDbTestBase {
+
+    /** Inserts count random two-column tuples into f and flushes them. */
+    private static void insertAndFlush(DbFile f, int count, ArrayList<ArrayList<Integer>> tuples)
+            throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < count; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { i, -i });
+            Database.getBufferPool().insertTuple(tid, f.getId(), t);
+            ArrayList<Integer> values = new ArrayList<Integer>();
+            values.add(i);
+            values.add(-i);
+            tuples.add(values);
+        }
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @Test public void testHeapFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        f.setMemoryMapped(true);
+        assertTrue(f.isMemoryMapped());
+        SystemTestUtil.matchTuples(f, tuples);
+
+        // grows the file by two pages, which forces a remap
+        insertAndFlush(f, 504 * 2, tuples);
+        assertEquals(12, f.numPages());
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    @Test public void testBTreeFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 502 * 10, null, tuples, 0);
+        f.setMemoryMapped(true);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        // leaf splits append new pages to the file
+        insertAndFlush(f, 502 * 2, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MemoryMappedScanTest.class);
+    }
+}
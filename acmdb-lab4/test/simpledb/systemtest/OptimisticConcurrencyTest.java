@@ -0,0 +1,210 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs read-modify-write transactions from several threads under
+ * optimistic concurrency control: conflicting ones must fail validation and
+ * retry, and every committed change must show up, under optimistic
+ * concurrency control and two-phase locking alike, as contention goes down.
+ */
+public class OptimisticConcurrencyTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 20;
+    static final int TUPLES_PER_PAGE = 504;
+    static final int MAX_HOT_PAGES = 64;
+
+    private static Tuple readCounter(TransactionId tid, HeapFile f) throws Exception {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        Tuple t = scan.next();
+        assertFalse(scan.hasNext());
+        scan.close();
+        return t;
+    }
+
+    /** Replaces the only tuple of f with one whose first field is one higher. */
+    private static void increment(TransactionId tid, HeapFile f) throws Exception {
+        Tuple old = readCounter(tid, f);
+        // give other transactions a chance to read it too
+        Thread.yield();
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(((IntField) old.getField(0)).getValue() + 1));
+        t.setField(1, new IntField(0));
+        Database.getBufferPool().deleteTuple(tid, old);
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+    }
+
+    @Test public void testCounterIncrements() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1, null, tuples);
+        final int initial = tuples.get(0).get(0);
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final AtomicInteger aborts = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        long failuresBefore = Database.getBufferPool().getValidationFailures();
+
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        int commits = 0;
+                        while (commits < COMMITS_PER_THREAD) {
+                            Transaction t = new Transaction(true);
+                            t.start();
+                            try {
+                                increment(t.getId(), f);
+                            } catch (TransactionAbortedException e) {
+                                aborts.incrementAndGet();
+                                t.abort();
+                                continue;
+                            }
+                            if (t.tryCommit()) {
+                                commits++;
+                            } else {
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join(60000);
+            assertFalse("transactions did not finish", t.isAlive());
+        }
+        assertNull(error.get());
+
+        TransactionId tid = new TransactionId();
+        int expected = THREADS * COMMITS_PER_THREAD;
+        assertEquals(initial + expected, ((IntField) readCounter(tid, f).getField(0)).getValue());
+        Database.getBufferPool().transactionComplete(tid);
+        // pages are validated in a fixed order, so every abort is a failed validation
+        assertEquals(aborts.get(), Database.getBufferPool().getValidationFailures() - failuresBefore);
+    }
+
+    /** Adds one to the second field of the first tuple on page pageNo of f. */
+    private static void bump(TransactionId tid, HeapFile f, int pageNo) throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), pageNo), Permissions.READ_WRITE);
+        Tuple t = page.iterator().next();
+        t.setField(1, new IntField(((IntField) t.getField(1)).getValue() + 1));
+        page.markDirty(true, tid);
+    }
+
+    private static int firstValue(TransactionId tid, HeapFile f, int pageNo) throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), pageNo), Permissions.READ_ONLY);
+        return ((IntField) page.iterator().next().getField(1)).getValue();
+    }
+
+    static int sumOfFirstValues(HeapFile f, int pages) throws Exception {
+        TransactionId tid = new TransactionId();
+        int sum = 0;
+        for (int p = 0; p < pages; p++) {
+            sum += firstValue(tid, f, p);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return sum;
+    }
+
+    /**
+     * Runs transactions that each read one random page of the first
+     * hotPages and change another from several threads, until runMillis
+     * have passed or, if runMillis is 0, each thread committed
+     * commitsPerThread times.
+     * @return the number of commits and aborts
+     */
+    static int[] runMix(final HeapFile f, final int hotPages, final boolean optimistic,
+            final long runMillis, final int commitsPerThread) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger aborts = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final long end = System.currentTimeMillis() + runMillis;
+
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Random random = new Random();
+                        barrier.await();
+                        int committed = 0;
+                        while (runMillis > 0 ? System.currentTimeMillis() < end
+                                : committed < commitsPerThread) {
+                            Transaction t = new Transaction(optimistic);
+                            t.start();
+                            try {
+                                firstValue(t.getId(), f, random.nextInt(hotPages));
+                                bump(t.getId(), f, random.nextInt(hotPages));
+                            } catch (TransactionAbortedException e) {
+                                aborts.incrementAndGet();
+                                t.abort();
+                                continue;
+                            }
+                            if (t.tryCommit()) {
+                                commits.incrementAndGet();
+                                committed++;
+                            } else {
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join(60000);
+            assertFalse("transactions did not finish", t.isAlive());
+        }
+        assertNull(error.get());
+        return new int[] {commits.get(), aborts.get()};
+    }
+
+    /**
+     * Runs the same mix under locking and validation with all transactions
+     * on 1, 4, 16 and 64 pages.  Either way, every commit must have added
+     * exactly one, and every abort must come from a deadlock or a failed
+     * validation.
+     */
+    @Test public void testMixedContention() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * MAX_HOT_PAGES,
+                null, new ArrayList<ArrayList<Integer>>());
+        BufferPool pool = Database.resetBufferPool(MAX_HOT_PAGES * 2);
+        for (int hotPages = 1; hotPages <= MAX_HOT_PAGES; hotPages *= 4) {
+            for (boolean optimistic : new boolean[] {false, true}) {
+                int before = sumOfFirstValues(f, MAX_HOT_PAGES);
+                long failures = pool.getDeadlockCount() + pool.getValidationFailures();
+                int[] result = runMix(f, hotPages, optimistic, 0, COMMITS_PER_THREAD);
+                assertEquals(THREADS * COMMITS_PER_THREAD, result[0]);
+                assertEquals(before + result[0], sumOfFirstValues(f, MAX_HOT_PAGES));
+                assertEquals(result[1],
+                        pool.getDeadlockCount() + pool.getValidationFailures() - failures);
+            }
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OptimisticConcurrencyTest.class);
+    }
+}
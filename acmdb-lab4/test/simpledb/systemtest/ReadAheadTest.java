@@ -0,0 +1,173 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Checks that sequential scans of heap files and B+ tree leaves load the
+ * pages ahead of them in the background, and that the background reads
+ * neither read a page twice nor run past the end of a range scan.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 40;
+    // tuples per page for two int columns
+    private static final int HEAP_TUPLES_PER_PAGE = 504;
+    private static final int LEAF_TUPLES_PER_PAGE = 502;
+
+    static class InstrumentedHeapFile extends HeapFile {
+        final AtomicInteger readCount = new AtomicInteger(0);
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount.incrementAndGet();
+            return super.readPage(pid);
+        }
+    }
+
+    static class InstrumentedBTreeFile extends BTreeFile {
+        final AtomicInteger readCount = new AtomicInteger(0);
+
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount.incrementAndGet();
+            return super.readPage(pid);
+        }
+    }
+
+    /** Reads the first n tuples from a fresh iterator. */
+    private static void readTuples(DbFileIterator it, int n) throws Exception {
+        it.open();
+        for (int i = 0; i < n; i++) {
+            assertTrue(it.hasNext());
+            it.next();
+        }
+    }
+
+    /** Waits up to two seconds for the read count to exceed n. */
+    private static int awaitReadsAbove(AtomicInteger readCount, int n) throws InterruptedException {
+        for (int i = 0; i < 200 && readCount.get() <= n; i++) {
+            Thread.sleep(10);
+        }
+        return readCount.get();
+    }
+
+    /** Waits until no read has happened for 100ms, so background reads are done. */
+    private static void awaitQuiet(AtomicInteger readCount) throws InterruptedException {
+        int last;
+        do {
+            last = readCount.get();
+            Thread.sleep(100);
+        } while (readCount.get() != last);
+    }
+
+    /**
+     * Reads the first few pages of f with read-ahead disabled and then
+     * enabled; the second scan must end up reading more pages than it has
+     * touched.
+     */
+    private static void checkReadsAhead(DbFile f, AtomicInteger readCount, int tuples)
+            throws Exception {
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        pool.setReadAheadPages(0);
+        readCount.set(0);
+        readTuples(f.iterator(new TransactionId()), tuples);
+        awaitQuiet(readCount);
+        int touched = readCount.get();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        readCount.set(0);
+        readTuples(f.iterator(new TransactionId()), tuples);
+        assertTrue(awaitReadsAbove(readCount, touched) > touched);
+        awaitQuiet(readCount);
+    }
+
+    @Test public void testHeapScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File file = SystemTestUtil.createRandomHeapFileUnopened(2, PAGES * HEAP_TUPLES_PER_PAGE,
+                1 << 16, null, tuples);
+        InstrumentedHeapFile f = new InstrumentedHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        checkReadsAhead(f, f.readCount, 3 * HEAP_TUPLES_PER_PAGE + 1);
+
+        // a full scan still reads every page exactly once
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        f.readCount.set(0);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(PAGES, f.readCount.get());
+    }
+
+    @Test public void testLeafScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, PAGES * LEAF_TUPLES_PER_PAGE,
+                null, tuples, 0);
+        InstrumentedBTreeFile f = new InstrumentedBTreeFile(bf.getFile(), 0, bf.getTupleDesc());
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        checkReadsAhead(f, f.readCount, 3 * LEAF_TUPLES_PER_PAGE + 1);
+
+        // root pointer + root + every leaf, each read once
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        f.readCount.set(0);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(PAGES + 2, f.readCount.get());
+    }
+
+    @Test public void testRangeScanStopsAtBound() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, PAGES * LEAF_TUPLES_PER_PAGE,
+                null, tuples, 0);
+        InstrumentedBTreeFile f = new InstrumentedBTreeFile(bf.getFile(), 0, bf.getTupleDesc());
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        // keys are sorted across leaves, so the scan stops on the 11th leaf
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            keys.add(t.get(0));
+        }
+        Collections.sort(keys);
+        int bound = keys.get(10 * LEAF_TUPLES_PER_PAGE + LEAF_TUPLES_PER_PAGE / 2);
+        int matching = 0;
+        for (int k : keys) {
+            if (k < bound) matching++;
+        }
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        f.readCount.set(0);
+        DbFileIterator it = f.indexIterator(new TransactionId(),
+                new IndexPredicate(Op.LESS_THAN, new IntField(bound)));
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            it.next();
+            found++;
+        }
+        assertEquals(matching, found);
+        awaitQuiet(f.readCount);
+        int leaves = f.readCount.get() - 2;
+        assertEquals(matching / LEAF_TUPLES_PER_PAGE + 1, leaves);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -107,6 +107,15 @@ public class SystemTestUtil {
         matchTuples(scan, tuples);
     }
 
+    /** @return the number of tuples of f, scanned by a transaction of its own */
+    public static int countTuples(DbFile f)
+            throws DbException, TransactionAbortedException, IOException {
+        TransactionId tid = new TransactionId();
+        int n = TestUtil.countTuples(new SeqScan(tid, f.getId(), ""));
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
     public static void matchTuples(DbIterator iterator, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         ArrayList<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(tuples);